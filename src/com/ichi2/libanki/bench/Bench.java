@@ -0,0 +1,159 @@
+package com.ichi2.libanki.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Debug;
+import android.util.Log;
+
+import com.ichi2.libanki.test.Shared;
+
+/**
+ * Minimal benchmark harness: warm-up runs, timed iterations and percentile reporting, plus the
+ * number of objects and bytes allocated per run.
+ *
+ * Every result is logged and appended as one JSON object per line to {@link #RESULTS_FILE} in the
+ * external cache dir of the test context, so runs on different commits can be pulled with adb and
+ * compared.
+ */
+public class Bench {
+    public static final String RESULTS_FILE = "libanki-bench.jsonl";
+
+    /** Extra untimed runs of every task during which allocations are counted. */
+    private static final int ALLOC_RUNS = 3;
+
+    /** One unit of work to measure. Only run() is timed. */
+    public static abstract class Task {
+        /** Called before every run, warm-up or not, outside of the timing. */
+        public void setUp(int iteration) {
+        }
+
+        public abstract void run(int iteration);
+    }
+
+    public static class Result {
+        public final String name;
+        public final String params;
+        /** Sorted durations of the timed iterations, in nanoseconds. */
+        public final long[] samples;
+        /**
+         * Objects and bytes allocated per run by all threads of the process, so work a task hands to
+         * other threads (such as sync chunk prefetching) is counted too. Allocations of unrelated
+         * threads running at the same time end up in it as well.
+         */
+        public final long allocCount;
+        public final long allocBytes;
+
+        public Result(String name, String params, long[] samples, long allocCount, long allocBytes) {
+            this.name = name;
+            this.params = params;
+            this.samples = samples.clone();
+            Arrays.sort(this.samples);
+            this.allocCount = allocCount;
+            this.allocBytes = allocBytes;
+        }
+
+        /** Nearest-rank percentile, p between 0 and 100. */
+        public long percentile(double p) {
+            int rank = (int) Math.ceil(p / 100.0 * samples.length);
+            return samples[Math.max(0, Math.min(samples.length - 1, rank - 1))];
+        }
+
+        public long mean() {
+            long sum = 0;
+            for (long s : samples) {
+                sum += s;
+            }
+            return sum / samples.length;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject o = new JSONObject();
+            try {
+                o.put("benchmark", name);
+                o.put("params", params);
+                o.put("unit", "us");
+                o.put("n", samples.length);
+                o.put("min", samples[0] / 1000);
+                o.put("p50", percentile(50) / 1000);
+                o.put("p90", percentile(90) / 1000);
+                o.put("p99", percentile(99) / 1000);
+                o.put("max", samples[samples.length - 1] / 1000);
+                o.put("mean", mean() / 1000);
+                o.put("allocCount", allocCount);
+                o.put("allocBytes", allocBytes);
+                o.put("time", System.currentTimeMillis());
+                o.put("device", Build.MODEL);
+                o.put("sdk", Build.VERSION.SDK_INT);
+            } catch (JSONException e) {
+                throw new RuntimeException(e);
+            }
+            return o;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s [%s] n=%d p50=%dus p90=%dus p99=%dus max=%dus alloc=%d/%dB", name,
+                    params, samples.length, percentile(50) / 1000, percentile(90) / 1000, percentile(99) / 1000,
+                    samples[samples.length - 1] / 1000, allocCount, allocBytes);
+        }
+    }
+
+    public static Result measure(String name, String params, int warmup, int iterations, Task task) {
+        for (int i = 0; i < warmup; i++) {
+            task.setUp(i);
+            task.run(i);
+        }
+        long[] samples = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            task.setUp(warmup + i);
+            long t = System.nanoTime();
+            task.run(warmup + i);
+            samples[i] = System.nanoTime() - t;
+        }
+        // allocation counting slows the VM down, so it gets runs of its own after the timed ones
+        int counted = Math.min(iterations, ALLOC_RUNS);
+        long allocCount = 0;
+        long allocBytes = 0;
+        for (int i = 0; i < counted; i++) {
+            task.setUp(warmup + iterations + i);
+            Debug.resetGlobalAllocCount();
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+            task.run(warmup + iterations + i);
+            Debug.stopAllocCounting();
+            allocCount += Debug.getGlobalAllocCount();
+            allocBytes += Debug.getGlobalAllocSize();
+        }
+        return new Result(name, params, samples, allocCount / counted, allocBytes / counted);
+    }
+
+    public static void report(Context ctx, Result result) {
+        Log.i(Shared.TAG, "Bench: " + result);
+        File out = new File(ctx.getExternalCacheDir(), RESULTS_FILE);
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(out, true);
+            writer.write(result.toJSON().toString());
+            writer.write("\n");
+        } catch (IOException e) {
+            Log.e(Shared.TAG, "Bench.report: ", e);
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(Shared.TAG, "Bench.report: ", e);
+                }
+            }
+        }
+    }
+}
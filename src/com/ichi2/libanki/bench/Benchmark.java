@@ -0,0 +1,15 @@
+package com.ichi2.libanki.bench;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a benchmark. Benchmarks carry no size annotation, so "-e size large" leaves them out, and
+ * "-e notAnnotation com.ichi2.libanki.bench.Benchmark" keeps them out of a run of all tests.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Benchmark {
+}
@@ -0,0 +1,716 @@
+package com.ichi2.libanki.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.InstrumentationTestCase;
+
+import com.ichi2.libanki.Card;
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Models;
+import com.ichi2.libanki.Note;
+import com.ichi2.libanki.Utils;
+import com.ichi2.libanki.sync.LocalServer;
+import com.ichi2.libanki.sync.Syncer;
+import com.ichi2.libanki.test.CardPager;
+import com.ichi2.libanki.test.CollectionGenerator;
+import com.ichi2.libanki.test.Shared;
+
+/**
+ * Benchmarks of the main libanki entry points over collections of increasing size. Each size is
+ * built once per run and kept open as a read-only master; benchmarks that change the collection
+ * work on a copy of it.
+ */
+public class CollectionBenchmark extends InstrumentationTestCase {
+    public static final int[] SIZES = new int[]{1000, 10000, 100000};
+
+    /** Number of distinct files the generated notes refer to. */
+    private static final int MEDIA_FILES = 100;
+
+    private static final Map<Integer, Collection> sMasters = new HashMap<Integer, Collection>();
+
+    public CollectionBenchmark(String name) {
+        setName(name);
+    }
+
+    /** The shared collection of the given number of notes. Must not be modified. */
+    protected Collection master(int notes) {
+        Collection col = sMasters.get(notes);
+        if (col == null) {
+            col = Shared.getEmptyDeck(getInstrumentation().getContext());
+            new CollectionGenerator(notes).notes(notes).media(MEDIA_FILES, false).populate(col);
+            sMasters.put(notes, col);
+        }
+        return col;
+    }
+
+    protected Collection copy(int notes, boolean server) {
+        try {
+            return Shared.copyCollection(master(notes), server);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Closes and deletes the master collections with their media folders. LibankiBenchmarkSuite
+     * calls this once all benchmarks ran, as they share the masters.
+     */
+    public static void discardMasters() {
+        for (Collection col : sMasters.values()) {
+            File media = new File(col.getMedia().getDir());
+            discard(col);
+            File[] files = media.listFiles();
+            if (files != null) {
+                for (File f : files) {
+                    f.delete();
+                }
+            }
+            media.delete();
+        }
+        sMasters.clear();
+    }
+
+    protected static void discard(Collection col) {
+        String path = col.getPath();
+        col.close(false);
+        new File(path).delete();
+    }
+
+    protected void report(Bench.Result result) {
+        Bench.report(getInstrumentation().getContext(), result);
+    }
+
+    @Benchmark
+    public void test_addNote() {
+        for (int size : SIZES) {
+            final Collection col = copy(size, false);
+            report(Bench.measure("addNote", "notes=" + size, 10, 100, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    Note f = col.newNote();
+                    f.setitem("Front", "added " + i);
+                    f.setitem("Back", "back " + i);
+                    f.setTagsFromStr("added");
+                    col.addNote(f);
+                }
+            }));
+            discard(col);
+        }
+    }
+
+    @Benchmark
+    public void test_findCards() {
+        String[] queries = new String[]{"", "deck:gen", "deck:gen::0-1 is:due", "tag:" + CollectionGenerator.tag(7),
+                "word", "front:word*", "'front:word 5'", "meaning -tag:" + CollectionGenerator.tag(1), "\"meaning 5\"",
+                "helloworld"};
+        for (int size : SIZES) {
+            final Collection col = master(size);
+            for (final String query : queries) {
+                report(Bench.measure("findCards", "notes=" + size + ";query=" + query, 3, 20, new Bench.Task() {
+                    @Override
+                    public void run(int i) {
+                        col.findCards(query);
+                    }
+                }));
+            }
+        }
+    }
+
+    /** Time to the first screen of results: everything from findCards, or one page from the id keyset. */
+    @Benchmark
+    public void test_firstPage() {
+        for (int size : SIZES) {
+            final Collection col = master(size);
+            report(Bench.measure("findCards all", "notes=" + size, 3, 20, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.findCards("");
+                }
+            }));
+            report(Bench.measure("CardPager first page", "notes=" + size + ";page=100", 3, 20, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    new CardPager(col, null, 100).next();
+                }
+            }));
+            report(Bench.measure("CardPager all pages", "notes=" + size + ";page=1000", 3, 20, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    CardPager pager = new CardPager(col, null, 1000);
+                    while (pager.next().length > 0) {
+                    }
+                }
+            }));
+        }
+    }
+
+    /** Bulk id handling, boxed as the libanki APIs do it and primitive; compare allocCount. */
+    @Benchmark
+    public void test_idLists() {
+        for (int size : SIZES) {
+            final Collection col = copy(size, false);
+            report(Bench.measure("ids as List<Long>", "notes=" + size, 3, 20, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getDb().queryColumn(Long.class, "SELECT id FROM cards", 0);
+                }
+            }));
+            report(Bench.measure("ids as long[]", "notes=" + size, 3, 20, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    SQLiteDatabase db = col.getDb().getDatabase();
+                    Cursor cur = db.rawQuery("SELECT id FROM cards", null);
+                    try {
+                        long[] ids = new long[cur.getCount()];
+                        for (int n = 0; cur.moveToNext(); n++) {
+                            ids[n] = cur.getLong(0);
+                        }
+                    } finally {
+                        cur.close();
+                    }
+                }
+            }));
+            report(Bench.measure("Models.nids", "notes=" + size, 3, 20, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getModels().nids(col.getModels().current());
+                }
+            }));
+            final List<Long> nids = col.getDb().queryColumn(Long.class, "SELECT id FROM notes", 0);
+            report(Bench.measure("Tags.bulkAdd all", "notes=" + size, 1, 5, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getTags().bulkAdd(nids, "bulk" + i);
+                }
+            }));
+            discard(col);
+        }
+    }
+
+    /** The browser pattern: edit one note, then run the same search again. Only the search is timed. */
+    @Benchmark
+    public void test_findCardsAfterEdit() {
+        for (int size : SIZES) {
+            final Collection col = copy(size, false);
+            final List<Long> nids = col.getDb().queryColumn(Long.class, "SELECT id FROM notes LIMIT 100", 0);
+            report(Bench.measure("findCards after edit", "notes=" + size, 3, 20, new Bench.Task() {
+                @Override
+                public void setUp(int i) {
+                    Note f = col.getNote(nids.get(i % nids.size()));
+                    f.setitem("Back", "edited " + i);
+                    f.flush();
+                }
+
+                @Override
+                public void run(int i) {
+                    col.findCards("deck:gen is:due");
+                }
+            }));
+            discard(col);
+        }
+    }
+
+    @Benchmark
+    public void test_answerCard() throws JSONException {
+        for (int size : SIZES) {
+            final Collection col = copy(size, false);
+            col.getDecks().confForDid(1).getJSONObject("new").put("perDay", 9999);
+            col.getDecks().select(col.getDecks().id("Gen"));
+            col.reset();
+            report(Bench.measure("getCard+answerCard", "notes=" + size, 10, 200, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    Card c = col.getSched().getCard();
+                    col.getSched().answerCard(c, 3);
+                }
+            }));
+            report(Bench.measure("reset", "notes=" + size, 3, 20, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.reset();
+                }
+            }));
+            discard(col);
+        }
+    }
+
+    @Benchmark
+    public void test_sync() {
+        for (int size : SIZES) {
+            for (int transport : new int[]{LocalServer.TRANSPORT_COPY, LocalServer.TRANSPORT_SHARED,
+                    LocalServer.TRANSPORT_COMPRESSED}) {
+                syncBenchmark(size, transport, 0);
+            }
+            syncBenchmark(size, LocalServer.TRANSPORT_COPY, 2);
+        }
+    }
+
+    /** Full merge of a server collection of the given size into an empty client. */
+    private void syncBenchmark(final int size, final int transport, final int prefetch) {
+        final Context ctx = getInstrumentation().getContext();
+        final Collection[] cols = new Collection[2];
+        final Syncer[] client = new Syncer[1];
+        String params = "notes=" + size + ";transport=" + transport + ";prefetch=" + prefetch;
+        report(Bench.measure("sync", params, 1, 3, new Bench.Task() {
+            @Override
+            public void setUp(int i) {
+                if (cols[0] != null) {
+                    discard(cols[0]);
+                    discard(cols[1]);
+                }
+                cols[0] = Shared.getEmptyDeck(ctx);
+                cols[1] = copy(size, true);
+                // the master was built as a client, so its rows are still pending with usn -1
+                for (String table : new String[]{"notes", "cards", "revlog"}) {
+                    cols[1].getDb().execute("update " + table + " set usn = 0");
+                }
+                for (JSONObject m : cols[1].getModels().all()) {
+                    cols[1].getModels().save(m);
+                }
+                for (JSONObject g : cols[1].getDecks().all()) {
+                    cols[1].getDecks().save(g);
+                }
+                cols[0].setScm(0);
+                cols[1].setScm(0);
+                long t = Utils.intNow(1000);
+                cols[1].save(t - 1000);
+                cols[0].save(t);
+                LocalServer server = new LocalServer(cols[1], transport);
+                server.setPrefetch(prefetch);
+                client[0] = new Syncer(cols[0], server);
+            }
+
+            @Override
+            public void run(int i) {
+                if (!"success".equals(client[0].sync()[0])) {
+                    throw new IllegalStateException("sync failed");
+                }
+            }
+        }));
+        discard(cols[0]);
+        discard(cols[1]);
+    }
+
+    @Benchmark
+    public void test_mediaCheck() throws IOException {
+        for (int size : SIZES) {
+            final Collection col = copy(size, false);
+            // leave out a few of the referenced files and add some nobody uses
+            File dir = new File(col.getMedia().getDir());
+            for (int i = 0; i < MEDIA_FILES * 3 / 2; i++) {
+                if (i % 10 == 3) {
+                    continue;
+                }
+                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(new File(dir,
+                        CollectionGenerator.media(i))));
+                bos.write(("image " + i).getBytes());
+                bos.close();
+            }
+            report(Bench.measure("Media.check", "notes=" + size, 2, 10, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getMedia().check();
+                }
+            }));
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            discard(col);
+        }
+    }
+
+    /** Media.check with a large media folder: half as many files as notes, most of them unused. */
+    @Benchmark
+    public void test_mediaCheckManyFiles() {
+        for (int size : SIZES) {
+            final Collection col = Shared.getEmptyDeck(getInstrumentation().getContext());
+            new CollectionGenerator(size).notes(size).media(size / 2, true).populate(col);
+            report(Bench.measure("Media.check", "notes=" + size + ";files=" + size / 2, 1, 5, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getMedia().check();
+                }
+            }));
+            File dir = new File(col.getMedia().getDir());
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            discard(col);
+        }
+    }
+
+    /** Media.findChanges over a folder of the given size, unchanged and after one file was added. */
+    @Benchmark
+    public void test_findChanges() throws IOException {
+        for (final int files : new int[]{1000, 10000, 50000}) {
+            final Collection col = Shared.getEmptyDeck(getInstrumentation().getContext());
+            final File dir = new File(col.getMedia().getDir());
+            for (int i = 0; i < files; i++) {
+                BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(new File(dir,
+                        CollectionGenerator.media(i))));
+                bos.write(("image " + i).getBytes());
+                bos.close();
+            }
+            col.getMedia().findChanges();
+            report(Bench.measure("Media.findChanges unchanged", "files=" + files, 2, 10, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getMedia().findChanges();
+                }
+            }));
+            report(Bench.measure("Media.findChanges one added", "files=" + files, 1, 5, new Bench.Task() {
+                @Override
+                public void setUp(int i) {
+                    try {
+                        // the folder mtime has one second granularity
+                        Thread.sleep(1000);
+                        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(new File(dir,
+                                "added" + i + ".png")));
+                        bos.write(("added " + i).getBytes());
+                        bos.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                @Override
+                public void run(int i) {
+                    col.getMedia().findChanges();
+                }
+            }));
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            discard(col);
+        }
+    }
+
+    /** Media.addFile of a new file of the given size, which has to be compared, hashed and copied. */
+    @Benchmark
+    public void test_addFile() {
+        final File dir = getInstrumentation().getTargetContext().getCacheDir();
+        final File[] src = new File[1];
+        for (final int kb : new int[]{1, 1024, 10240}) {
+            final Collection col = Shared.getEmptyDeck(getInstrumentation().getContext());
+            final byte[] data = new byte[kb * 1024];
+            new Random(kb).nextBytes(data);
+            report(Bench.measure("Media.addFile", "kb=" + kb, 2, 10, new Bench.Task() {
+                @Override
+                public void setUp(int i) {
+                    // a name of its own for every run, so no run has to compare against the files of
+                    // the earlier ones under the same name
+                    if (src[0] != null) {
+                        src[0].delete();
+                    }
+                    src[0] = new File(dir, "bench" + i + ".bin");
+                    data[0] = (byte) i;
+                    data[data.length - 1] = (byte) (i >> 8);
+                    try {
+                        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(src[0]));
+                        bos.write(data);
+                        bos.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                @Override
+                public void run(int i) {
+                    col.getMedia().addFile(src[0].getAbsolutePath());
+                }
+            }));
+            for (File f : new File(col.getMedia().getDir()).listFiles()) {
+                f.delete();
+            }
+            discard(col);
+        }
+        src[0].delete();
+    }
+
+    /** The media reference helpers on long HTML fields, as used on every render and by Media.check. */
+    @Benchmark
+    public void test_mediaStrings() {
+        final Collection col = master(SIZES[0]);
+        for (int kb : new int[]{1, 16, 256}) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; sb.length() < kb * 1024; i++) {
+                sb.append("<div class='c'>some <b>text</b> ").append(i).append("</div>");
+                if (i % 8 == 0) {
+                    sb.append("<img src=\"").append(CollectionGenerator.media(i)).append("\">");
+                }
+                if (i % 32 == 0) {
+                    sb.append("[sound:s").append(i).append(".mp3]");
+                }
+            }
+            final String field = sb.toString();
+            report(Bench.measure("Media.filesInStr", "kb=" + kb, 10, 100, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getMedia().filesInStr(field);
+                }
+            }));
+            report(Bench.measure("Media.strip", "kb=" + kb, 10, 100, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getMedia().strip(field);
+                }
+            }));
+            report(Bench.measure("Media.escapeImages", "kb=" + kb, 10, 100, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    col.getMedia().escapeImages(field);
+                }
+            }));
+        }
+    }
+
+    /** Question and answer rendering of a fresh card object, as when moving through the browser. */
+    @Benchmark
+    public void test_render() throws JSONException {
+        final Collection col = copy(SIZES[0], false);
+        JSONObject m = col.getModels().current();
+        JSONObject field = col.getModels().newField(m.toString());
+        field.put("name", "Hint");
+        col.getModels().addField(m, field);
+        m.getJSONArray("tmpls").getJSONObject(0).put("qfmt", "{{furigana:Front}}{{hint:Hint}}");
+        col.getModels().save(m);
+        final List<Long> cids = col.getDb().queryColumn(Long.class, "SELECT id FROM cards ORDER BY id LIMIT 500", 0);
+        report(Bench.measure("Card.getQuestion+getAnswer", "templates=mixed", 50, 500, new Bench.Task() {
+            @Override
+            public void run(int i) {
+                Card c = col.getCard(cids.get(i % cids.size()));
+                c.getQuestion(false);
+                c.getAnswer(false);
+            }
+        }));
+        report(Bench.measure("Card.getQuestion+getAnswer same card", "templates=mixed", 50, 500, new Bench.Task() {
+            @Override
+            public void run(int i) {
+                Card c = col.getCard(cids.get(0));
+                c.getQuestion(false);
+                c.getAnswer(false);
+            }
+        }));
+        discard(col);
+    }
+
+    /** Adding many notes at once, through the bulk inserts of the generator and through addNote. */
+    @Benchmark
+    public void test_ingest() {
+        final Context ctx = getInstrumentation().getContext();
+        for (final int size : new int[]{1000, 10000}) {
+            for (final boolean sequential : new boolean[]{false, true}) {
+                final Collection[] col = new Collection[1];
+                report(Bench.measure("ingest", "notes=" + size + ";addNote=" + sequential, 1, 3, new Bench.Task() {
+                    @Override
+                    public void setUp(int i) {
+                        if (col[0] != null) {
+                            discard(col[0]);
+                        }
+                        col[0] = Shared.getEmptyDeck(ctx);
+                    }
+
+                    @Override
+                    public void run(int i) {
+                        new CollectionGenerator(i).notes(size).reviewed(0).sequential(sequential).populate(col[0]);
+                    }
+                }));
+                discard(col[0]);
+            }
+        }
+    }
+
+    /** Card generation for every note of a model after a template was added. */
+    @Benchmark
+    public void test_addTemplate() {
+        for (final int size : SIZES) {
+            final Collection[] col = new Collection[1];
+            final JSONObject[] model = new JSONObject[1];
+            report(Bench.measure("Models.save with new template", "notes=" + size, 0, 3, new Bench.Task() {
+                @Override
+                public void setUp(int i) {
+                    if (col[0] != null) {
+                        discard(col[0]);
+                    }
+                    col[0] = copy(size, false);
+                    Models mm = col[0].getModels();
+                    model[0] = mm.current();
+                    try {
+                        JSONObject t = mm.newTemplate("Extra");
+                        t.put("qfmt", "{{Back}}");
+                        t.put("afmt", "{{Front}}");
+                        mm.addTemplate(model[0], t);
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+
+                @Override
+                public void run(int i) {
+                    col[0].getModels().save(model[0], true);
+                }
+            }));
+            discard(col[0]);
+        }
+    }
+
+    /** The field operations of the note type editor, each rewriting every note of the model. */
+    @Benchmark
+    public void test_fieldOps() {
+        for (int size : SIZES) {
+            final Collection col = copy(size, false);
+            final Models mm = col.getModels();
+            final JSONObject m = mm.current();
+            String params = "notes=" + size;
+            report(Bench.measure("Models.addField", params, 0, 3, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    try {
+                        JSONObject f = mm.newField(m.toString());
+                        f.put("name", "Extra" + i);
+                        mm.addField(m, f);
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+            report(Bench.measure("Models.moveField", params, 0, 3, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    try {
+                        JSONArray flds = m.getJSONArray("flds");
+                        mm.moveField(m, flds.getJSONObject(0), flds.length() - 1);
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+            report(Bench.measure("Models.renameField", params, 0, 3, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    try {
+                        mm.renameField(m, m.getJSONArray("flds").getJSONObject(1), "Renamed" + i);
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+            report(Bench.measure("Models.remField", params, 0, 3, new Bench.Task() {
+                @Override
+                public void run(int i) {
+                    try {
+                        JSONArray flds = m.getJSONArray("flds");
+                        mm.remField(m, flds.getJSONObject(flds.length() - 1));
+                    } catch (JSONException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }));
+            discard(col);
+        }
+    }
+
+    /** Models.change of every note of the current model to a copy of it, swapping the fields and keeping the card. */
+    @Benchmark
+    public void test_modelChange() {
+        for (final int size : SIZES) {
+            final Collection[] col = new Collection[1];
+            final JSONObject[] models = new JSONObject[2];
+            final long[][] nids = new long[1][];
+            final Map<Integer, Integer> fieldMap = new HashMap<Integer, Integer>();
+            fieldMap.put(0, 1);
+            fieldMap.put(1, 0);
+            final Map<Integer, Integer> cardMap = new HashMap<Integer, Integer>();
+            cardMap.put(0, 0);
+            report(Bench.measure("Models.change", "notes=" + size, 0, 3, new Bench.Task() {
+                @Override
+                public void setUp(int i) {
+                    if (col[0] != null) {
+                        discard(col[0]);
+                    }
+                    col[0] = copy(size, false);
+                    models[0] = col[0].getModels().current();
+                    models[1] = col[0].getModels().copy(models[0]);
+                    List<Long> ids = col[0].getModels().nids(models[0]);
+                    nids[0] = new long[ids.size()];
+                    for (int n = 0; n < nids[0].length; n++) {
+                        nids[0][n] = ids.get(n);
+                    }
+                }
+
+                @Override
+                public void run(int i) {
+                    col[0].getModels().change(models[0], nids[0], models[1], fieldMap, cardMap);
+                }
+            }));
+            discard(col[0]);
+        }
+    }
+
+    /**
+     * Cost of a batch of single-row updates in one transaction: a statement string built per call,
+     * one string with bound arguments through the wrapper, and a statement compiled once.
+     */
+    @Benchmark
+    public void test_statementCost() {
+        final int calls = 2000;
+        final Collection col = copy(SIZES[0], false);
+        final List<Long> cids = col.getDb().queryColumn(Long.class, "SELECT id FROM cards", 0);
+        final SQLiteDatabase db = col.getDb().getDatabase();
+        report(Bench.measure("execute concatenated", "calls=" + calls, 3, 20, new Bench.Task() {
+            @Override
+            public void run(int i) {
+                db.beginTransaction();
+                for (int n = 0; n < calls; n++) {
+                    col.getDb().execute("UPDATE cards SET reps = " + n + " WHERE id = " + cids.get(n % cids.size()));
+                }
+                db.setTransactionSuccessful();
+                db.endTransaction();
+            }
+        }));
+        report(Bench.measure("execute bound", "calls=" + calls, 3, 20, new Bench.Task() {
+            @Override
+            public void run(int i) {
+                db.beginTransaction();
+                for (int n = 0; n < calls; n++) {
+                    col.getDb().execute("UPDATE cards SET reps = ? WHERE id = ?", new Object[]{n, cids.get(n % cids.size())});
+                }
+                db.setTransactionSuccessful();
+                db.endTransaction();
+            }
+        }));
+        report(Bench.measure("execute compiled", "calls=" + calls, 3, 20, new Bench.Task() {
+            @Override
+            public void run(int i) {
+                db.beginTransaction();
+                SQLiteStatement stmt = db.compileStatement("UPDATE cards SET reps = ? WHERE id = ?");
+                for (int n = 0; n < calls; n++) {
+                    stmt.bindLong(1, n);
+                    stmt.bindLong(2, cids.get(n % cids.size()));
+                    stmt.execute();
+                }
+                stmt.close();
+                db.setTransactionSuccessful();
+                db.endTransaction();
+            }
+        }));
+        discard(col);
+    }
+}
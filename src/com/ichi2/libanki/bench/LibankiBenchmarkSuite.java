@@ -0,0 +1,38 @@
+package com.ichi2.libanki.bench;
+
+import android.test.suitebuilder.TestSuiteBuilder;
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+/**
+ * Suite containing the libanki benchmarks. They drive the same public APIs as the tests in
+ * {@link com.ichi2.libanki.test.LibankiTestSuite}, but measure instead of assert, so they live in
+ * their own package. They are marked with {@link Benchmark} rather than a size annotation, so
+ * "-e size large" does not run them; a run of all tests does, unless started with
+ * "-e notAnnotation com.ichi2.libanki.bench.Benchmark".
+ *
+ * To run from command line, go to the platform-tools of the Android SDK and execute:
+ * $ adb shell am instrument -w -e class com.ichi2.libanki.bench.LibankiBenchmarkSuite \
+ *   com.ichi2.anki.test/android.test.InstrumentationTestRunner
+ * and then collect the results with:
+ * $ adb pull /sdcard/Android/data/com.ichi2.anki.test/cache/libanki-bench.jsonl
+ *
+ * The generated collections are deleted at the end of this suite. Running a single benchmark class
+ * on its own leaves them in the cache dir.
+ */
+public class LibankiBenchmarkSuite extends TestSuite {
+
+    public static final Test suite() {
+        TestSuite suite = new TestSuite();
+        suite.addTest(new TestSuiteBuilder(LibankiBenchmarkSuite.class).includeAllPackagesUnderHere().build());
+        // the benchmarks share the generated collections, so they go once all of them ran
+        suite.addTest(new TestCase("discardMasters") {
+            @Override
+            protected void runTest() {
+                CollectionBenchmark.discardMasters();
+            }
+        });
+        return suite;
+    }
+}
@@ -16,7 +16,14 @@
 
 package com.ichi2.libanki.sync;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
@@ -30,11 +37,41 @@ import org.json.JSONObject;
 import com.ichi2.libanki.Collection;
 
 public class LocalServer extends BasicHttpSyncer implements HttpSyncer{
+	/** Every payload is deep-copied on the way in and out, as if it had crossed the wire. */
+	public static final int TRANSPORT_COPY = 0;
+	/**
+	 * Row data (chunks, graves, sanity counts) is handed over as is, and only the models, decks and
+	 * conf that end up live in the other collection's registries are copied.
+	 */
+	public static final int TRANSPORT_SHARED = 1;
+	/**
+	 * Every payload goes through {@link SyncCodec}, as it would with a server that announced
+	 * {@link SyncCodec#WIRE_FORMAT} in meta(), so the binary wire mode can be tested offline.
+	 */
+	public static final int TRANSPORT_COMPRESSED = 2;
+
+	/** How long the prefetching thread waits for the client to take a chunk before it gives up, in ms. */
+	public static final long PREFETCH_TIMEOUT = 60000;
+	/** Name of the prefetching thread. */
+	public static final String PREFETCH_THREAD = "LocalServer chunk prefetch";
+
 	Syncer syncer;
+	int transport;
+	long wireBytes;
+	int prefetch;
+	int chunks;
+	int maxChunkRows;
+	private BlockingQueue<Object> prefetched;
+	private Thread producer;
 	
 	public LocalServer(Collection col) {
+		this(col, TRANSPORT_COPY);
+	}
+
+	public LocalServer(Collection col, int transport) {
 		super(null, null);
 		syncer = new Syncer(col, null);
+		this.transport = transport;
 	}
 //
 //	public JSONObject applyChanges(JSONObject kw) {
@@ -46,8 +83,13 @@ public class LocalServer extends BasicHttpSyncer implements HttpSyncer{
 //	}
 
 	public HttpResponse meta() {
+		// a new sync, stop the prefetching left over from one that failed on the client side
+		abort();
 		JSONArray ja = syncer.meta();
 		ja.put(0);
+		if (transport == TRANSPORT_COMPRESSED) {
+			ja.put(SyncCodec.WIRE_FORMAT);
+		}
 		HttpEntity ent;
 		try {
 			ent = new StringEntity(ja.toString());
@@ -60,9 +102,21 @@ public class LocalServer extends BasicHttpSyncer implements HttpSyncer{
 	}
 
 	public JSONObject start(JSONObject o) {
+		abort();
 		try {
-			o = new JSONObject(o.toString());
-			return syncer.start(o.getInt("minUsn"), o.getBoolean("lnewer"), o.getJSONObject("graves"));
+			JSONObject graves = o.getJSONObject("graves");
+			if (transport == TRANSPORT_COPY) {
+				graves = copy(graves);
+			} else if (transport == TRANSPORT_COMPRESSED) {
+				graves = (JSONObject) wire(graves);
+			}
+			JSONObject ret = syncer.start(o.getInt("minUsn"), o.getBoolean("lnewer"), graves);
+			if (transport == TRANSPORT_COPY) {
+				return copy(ret);
+			} else if (transport == TRANSPORT_COMPRESSED) {
+				return (JSONObject) wire(ret);
+			}
+			return ret;
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
@@ -70,24 +124,146 @@ public class LocalServer extends BasicHttpSyncer implements HttpSyncer{
 
 	public JSONObject applyChanges(JSONObject o) {
 		try {
-			o = new JSONObject(o.toString());
-			return syncer.applyChanges(new JSONObject(o.getJSONObject("changes").toString()));
+			if (transport == TRANSPORT_COPY) {
+				return syncer.applyChanges(copy(o.getJSONObject("changes")));
+			} else if (transport == TRANSPORT_COMPRESSED) {
+				return (JSONObject) wire(syncer.applyChanges((JSONObject) wire(o.getJSONObject("changes"))));
+			}
+			return copyRegistries(syncer.applyChanges(copyRegistries(o.getJSONObject("changes"))));
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Lets chunk() build up to depth chunks ahead on a background thread, so the server prepares the
+	 * next chunk while the client is still applying the current one. 0, the default, turns it off.
+	 */
+	public void setPrefetch(int depth) {
+		prefetch = depth;
+	}
+
 	public JSONObject chunk() {
+		JSONObject chunk;
 		try {
-			return new JSONObject(syncer.chunk().toString());
+			chunk = prefetch > 0 ? nextPrefetched() : buildChunk();
+		} catch (RuntimeException e) {
+			abort();
+			throw e;
+		} catch (Error e) {
+			abort();
+			throw e;
+		}
+		countChunk(chunk);
+		return chunk;
+	}
+
+	private JSONObject buildChunk() {
+		try {
+			if (transport == TRANSPORT_COPY) {
+				return copy(syncer.chunk());
+			} else if (transport == TRANSPORT_COMPRESSED) {
+				return (JSONObject) wire(syncer.chunk());
+			}
+			return syncer.chunk();
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	private JSONObject nextPrefetched() {
+		if (producer == null) {
+			prefetched = new ArrayBlockingQueue<Object>(prefetch);
+			producer = new Thread(PREFETCH_THREAD) {
+				@Override
+				public void run() {
+					BlockingQueue<Object> queue = prefetched;
+					try {
+						try {
+							JSONObject chunk;
+							do {
+								chunk = buildChunk();
+								if (!queue.offer(chunk, PREFETCH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+									// nobody took a chunk for that long, the sync was abandoned
+									return;
+								}
+							} while (!chunk.getBoolean("done"));
+						} catch (JSONException e) {
+							queue.offer(new RuntimeException(e), PREFETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+						} catch (Throwable e) {
+							// errors too, an OutOfMemoryError on a large chunk must not leave the client waiting
+							queue.offer(e, PREFETCH_TIMEOUT, TimeUnit.MILLISECONDS);
+						}
+					} catch (InterruptedException e) {
+						// aborted, nobody is waiting for the rest
+					}
+				}
+			};
+			// an abandoned sync must not keep the process alive
+			producer.setDaemon(true);
+			producer.start();
+		}
+		Object next;
+		try {
+			do {
+				next = prefetched.poll(100, TimeUnit.MILLISECONDS);
+			} while (next == null && producer.isAlive());
+			if (next == null) {
+				// it may have queued its last item right before stopping
+				next = prefetched.poll();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		// chunk() aborts the producer on any of these
+		if (next == null) {
+			throw new RuntimeException("LocalServer: chunk prefetch thread stopped without a chunk");
+		} else if (next instanceof RuntimeException) {
+			throw (RuntimeException) next;
+		} else if (next instanceof Error) {
+			throw (Error) next;
+		} else if (next instanceof Throwable) {
+			throw new RuntimeException((Throwable) next);
+		}
+		JSONObject chunk = (JSONObject) next;
+		if (chunk.optBoolean("done")) {
+			// the producer stops by itself after the last chunk
+			producer = null;
+			prefetched = null;
+		}
+		return chunk;
+	}
+
+	/**
+	 * Stops the prefetching thread, if any, and drops the chunks it built that the client never
+	 * took. Called on every failure of this server and at the start of the next sync; a sync that
+	 * is abandoned on the client side should call it as well, else the thread only gives up after
+	 * {@link #PREFETCH_TIMEOUT}.
+	 */
+	public void abort() {
+		if (producer == null) {
+			return;
+		}
+		producer.interrupt();
+		try {
+			producer.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		producer = null;
+		prefetched = null;
+	}
+
 	public void applyChunk(JSONObject o) {
 		try {
-			syncer.applyChunk(new JSONObject(o.getJSONObject("chunk").toString()));
+			countChunk(o.getJSONObject("chunk"));
+			if (transport == TRANSPORT_COPY) {
+				syncer.applyChunk(copy(o.getJSONObject("chunk")));
+			} else if (transport == TRANSPORT_COMPRESSED) {
+				syncer.applyChunk((JSONObject) wire(o.getJSONObject("chunk")));
+			} else {
+				syncer.applyChunk(o.getJSONObject("chunk"));
+			}
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
@@ -95,13 +271,114 @@ public class LocalServer extends BasicHttpSyncer implements HttpSyncer{
 
 	public JSONArray sanityCheck() {
 		try {
-			return new JSONArray(syncer.sanityCheck().toString());
+			if (transport == TRANSPORT_COPY) {
+				return copy(syncer.sanityCheck());
+			} else if (transport == TRANSPORT_COMPRESSED) {
+				return (JSONArray) wire(syncer.sanityCheck());
+			}
+			return syncer.sanityCheck();
 		} catch (JSONException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
 	public long finish() {
+		abort();
 		return syncer.finish();
 	}
+
+	/** Number of chunks that went through this server so far, in both directions. */
+	public int getChunks() {
+		return chunks;
+	}
+
+	/** Most rows (notes, cards and revlog entries) held by a single chunk that went through this server. */
+	public int getMaxChunkRows() {
+		return maxChunkRows;
+	}
+
+	private void countChunk(JSONObject chunk) {
+		int rows = 0;
+		Iterator<?> keys = chunk.keys();
+		while (keys.hasNext()) {
+			JSONArray a = chunk.optJSONArray((String) keys.next());
+			if (a != null) {
+				rows += a.length();
+			}
+		}
+		chunks++;
+		maxChunkRows = Math.max(maxChunkRows, rows);
+	}
+
+	/** Number of encoded bytes that went through the compressed transport so far, in both directions. */
+	public synchronized long getWireBytes() {
+		return wireBytes;
+	}
+
+	/** Encodes a payload with {@link SyncCodec} and decodes it again, counting the bytes in between. */
+	private Object wire(Object payload) {
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			SyncCodec.encode(payload, bos);
+			// chunks are encoded on the prefetching thread, the other payloads on the caller's
+			synchronized (this) {
+				wireBytes += bos.size();
+			}
+			return SyncCodec.decode(new ByteArrayInputStream(bos.toByteArray()));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Deep copy of a payload, standing in for the trip over the wire. The tree is walked directly
+	 * rather than printed and parsed again, so a chunk of thousands of rows doesn't need a transient
+	 * string (and the parser's buffer) the size of the whole chunk on top of the copy itself.
+	 */
+	static JSONObject copy(JSONObject o) throws JSONException {
+		JSONObject ret = new JSONObject();
+		Iterator<?> keys = o.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			ret.put(key, copyValue(o.get(key)));
+		}
+		return ret;
+	}
+
+	static JSONArray copy(JSONArray a) throws JSONException {
+		JSONArray ret = new JSONArray();
+		for (int i = 0; i < a.length(); i++) {
+			ret.put(copyValue(a.get(i)));
+		}
+		return ret;
+	}
+
+	/**
+	 * Shallow copy of a change set in which only models, decks and conf are deep-copied. Those are
+	 * stored as they are by the receiving side, so sharing them would let an edit in one collection
+	 * show up in the other without a sync; tags and crt are immutable and can be shared.
+	 */
+	private static JSONObject copyRegistries(JSONObject changes) throws JSONException {
+		JSONObject ret = new JSONObject();
+		Iterator<?> keys = changes.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			Object v = changes.get(key);
+			if (key.equals("models") || key.equals("decks") || key.equals("conf")) {
+				v = copyValue(v);
+			}
+			ret.put(key, v);
+		}
+		return ret;
+	}
+
+	private static Object copyValue(Object v) throws JSONException {
+		if (v instanceof JSONObject) {
+			return copy((JSONObject) v);
+		} else if (v instanceof JSONArray) {
+			return copy((JSONArray) v);
+		}
+		// strings, numbers, booleans and JSONObject.NULL are immutable and can be shared
+		return v;
+	}
 }
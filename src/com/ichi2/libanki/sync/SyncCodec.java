@@ -0,0 +1,291 @@
+package com.ichi2.libanki.sync;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Iterator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Binary encoding of sync payloads, used instead of plain JSON text when both sides agree on
+ * {@link #WIRE_FORMAT} in meta().
+ *
+ * The stream is deflated and every value is tagged; strings, arrays and objects are prefixed with
+ * their length. Arrays whose elements are all arrays of the same length (the card, note and revlog
+ * rows of a chunk) are written column by column, and integer columns as deltas from the previous
+ * row, so ids, dues and usns that barely change between rows shrink to a byte or two before the
+ * deflater even sees them. Encoding and decoding both stream, so neither side needs the whole
+ * body in memory as a string.
+ */
+public class SyncCodec {
+	public static final String WIRE_FORMAT = "deflate-cols-1";
+
+	private static final int MAGIC = 0x414e4b31;
+
+	private static final int TAG_NULL = 0;
+	private static final int TAG_FALSE = 1;
+	private static final int TAG_TRUE = 2;
+	private static final int TAG_INT = 3;
+	private static final int TAG_DOUBLE = 4;
+	private static final int TAG_STRING = 5;
+	private static final int TAG_ARRAY = 6;
+	private static final int TAG_OBJECT = 7;
+	private static final int TAG_ROWS = 8;
+
+	// column kinds inside TAG_ROWS
+	private static final int COL_INTS = 0;
+	private static final int COL_MIXED = 1;
+
+	public static void encode(Object payload, OutputStream out) throws IOException {
+		// the native zlib state of a deflater is only freed by end(), not by the garbage collector
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			DeflaterOutputStream zos = new DeflaterOutputStream(out, deflater, 8192);
+			DataOutputStream dos = new DataOutputStream(zos);
+			dos.writeInt(MAGIC);
+			writeValue(dos, payload);
+			dos.flush();
+			zos.finish();
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		} finally {
+			deflater.end();
+		}
+	}
+
+	public static Object decode(InputStream in) throws IOException {
+		// as in encode(), and the caller's stream is left open
+		Inflater inflater = new Inflater();
+		try {
+			DataInputStream dis = new DataInputStream(new InflaterInputStream(in, inflater));
+			if (dis.readInt() != MAGIC) {
+				throw new IOException("Not a " + WIRE_FORMAT + " stream");
+			}
+			return readValue(dis, dis.readUnsignedByte());
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private static void writeValue(DataOutputStream out, Object v) throws IOException, JSONException {
+		if (v == null || v == JSONObject.NULL) {
+			out.writeByte(TAG_NULL);
+		} else if (v instanceof Boolean) {
+			out.writeByte(((Boolean) v) ? TAG_TRUE : TAG_FALSE);
+		} else if (v instanceof Integer || v instanceof Long || v instanceof Short || v instanceof Byte) {
+			out.writeByte(TAG_INT);
+			writeVarLong(out, zigzag(((Number) v).longValue()));
+		} else if (v instanceof Number) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble(((Number) v).doubleValue());
+		} else if (v instanceof JSONObject) {
+			JSONObject o = (JSONObject) v;
+			out.writeByte(TAG_OBJECT);
+			writeVarLong(out, o.length());
+			Iterator<?> keys = o.keys();
+			while (keys.hasNext()) {
+				String key = (String) keys.next();
+				writeString(out, key);
+				writeValue(out, o.get(key));
+			}
+		} else if (v instanceof JSONArray) {
+			JSONArray a = (JSONArray) v;
+			int width = rowWidth(a);
+			if (width > 0) {
+				writeRows(out, a, width);
+			} else {
+				out.writeByte(TAG_ARRAY);
+				writeVarLong(out, a.length());
+				for (int i = 0; i < a.length(); i++) {
+					writeValue(out, a.get(i));
+				}
+			}
+		} else {
+			out.writeByte(TAG_STRING);
+			writeString(out, v.toString());
+		}
+	}
+
+	private static Object readValue(DataInputStream in, int tag) throws IOException, JSONException {
+		switch (tag) {
+			case TAG_NULL:
+				return JSONObject.NULL;
+			case TAG_FALSE:
+				return Boolean.FALSE;
+			case TAG_TRUE:
+				return Boolean.TRUE;
+			case TAG_INT:
+				return number(unzigzag(readVarLong(in)));
+			case TAG_DOUBLE:
+				return in.readDouble();
+			case TAG_STRING:
+				return readString(in);
+			case TAG_OBJECT: {
+				int len = (int) readVarLong(in);
+				JSONObject o = new JSONObject();
+				for (int i = 0; i < len; i++) {
+					String key = readString(in);
+					o.put(key, readValue(in, in.readUnsignedByte()));
+				}
+				return o;
+			}
+			case TAG_ARRAY: {
+				int len = (int) readVarLong(in);
+				JSONArray a = new JSONArray();
+				for (int i = 0; i < len; i++) {
+					a.put(readValue(in, in.readUnsignedByte()));
+				}
+				return a;
+			}
+			case TAG_ROWS:
+				return readRows(in);
+			default:
+				throw new IOException("Unknown tag " + tag);
+		}
+	}
+
+	/** Returns the common length of the rows if a is a non-empty array of same-length arrays, else 0. */
+	private static int rowWidth(JSONArray a) {
+		if (a.length() == 0) {
+			return 0;
+		}
+		int width = -1;
+		for (int i = 0; i < a.length(); i++) {
+			Object row = a.opt(i);
+			if (!(row instanceof JSONArray)) {
+				return 0;
+			}
+			int len = ((JSONArray) row).length();
+			if (width == -1) {
+				width = len;
+			} else if (len != width) {
+				return 0;
+			}
+		}
+		return width;
+	}
+
+	private static void writeRows(DataOutputStream out, JSONArray rows, int width)
+			throws IOException, JSONException {
+		int count = rows.length();
+		out.writeByte(TAG_ROWS);
+		writeVarLong(out, count);
+		writeVarLong(out, width);
+		for (int col = 0; col < width; col++) {
+			boolean ints = true;
+			for (int i = 0; i < count && ints; i++) {
+				Object v = rows.getJSONArray(i).get(col);
+				ints = v instanceof Integer || v instanceof Long;
+			}
+			if (ints) {
+				out.writeByte(COL_INTS);
+				long prev = 0;
+				for (int i = 0; i < count; i++) {
+					long v = rows.getJSONArray(i).getLong(col);
+					writeVarLong(out, zigzag(v - prev));
+					prev = v;
+				}
+			} else {
+				out.writeByte(COL_MIXED);
+				for (int i = 0; i < count; i++) {
+					writeValue(out, rows.getJSONArray(i).get(col));
+				}
+			}
+		}
+	}
+
+	private static JSONArray readRows(DataInputStream in) throws IOException, JSONException {
+		int count = (int) readVarLong(in);
+		int width = (int) readVarLong(in);
+		Object[][] cells = new Object[count][width];
+		for (int col = 0; col < width; col++) {
+			int kind = in.readUnsignedByte();
+			if (kind == COL_INTS) {
+				long prev = 0;
+				for (int i = 0; i < count; i++) {
+					prev += unzigzag(readVarLong(in));
+					cells[i][col] = number(prev);
+				}
+			} else {
+				for (int i = 0; i < count; i++) {
+					cells[i][col] = readValue(in, in.readUnsignedByte());
+				}
+			}
+		}
+		JSONArray rows = new JSONArray();
+		for (int i = 0; i < count; i++) {
+			JSONArray row = new JSONArray();
+			for (int col = 0; col < width; col++) {
+				row.put(cells[i][col]);
+			}
+			rows.put(row);
+		}
+		return rows;
+	}
+
+	/** Same boxing as the JSON parser: Integer when it fits, Long otherwise. */
+	private static Object number(long v) {
+		if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+			return Integer.valueOf((int) v);
+		}
+		return Long.valueOf(v);
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		writeVarLong(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[(int) readVarLong(in)];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private static long unzigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.writeByte((int) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int) v);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new EOFException("Malformed varint");
+	}
+}
@@ -0,0 +1,62 @@
+package com.ichi2.libanki.test;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.ichi2.libanki.Collection;
+
+/**
+ * Walks the ids of the cards matching an SQL condition in pages, in id order, keeping only the
+ * last id seen between pages ("cards.id > N LIMIT"). Memory is bounded by the page size and the
+ * first page costs the same however many cards match.
+ *
+ * Rows inserted or removed between pages never cause an id to be returned twice, and every card
+ * that exists for the whole walk is returned once.
+ */
+public class CardPager {
+	private final SQLiteDatabase mDb;
+	private final String mSql;
+	private final int mPageSize;
+	private long mLast = Long.MIN_VALUE;
+	private boolean mDone = false;
+
+	/**
+	 * @param where condition on the cards table, aliased as c, with the notes table as n; or null
+	 * for all cards
+	 */
+	public CardPager(Collection col, String where, int pageSize) {
+		mDb = col.getDb().getDatabase();
+		mPageSize = pageSize;
+		mSql = "SELECT c.id FROM cards c, notes n WHERE c.nid = n.id AND c.id > ?"
+				+ (where == null ? "" : " AND (" + where + ")") + " ORDER BY c.id LIMIT " + pageSize;
+	}
+
+	/** The next page of ids, or an empty array once all were returned. */
+	public long[] next() {
+		if (mDone) {
+			return new long[0];
+		}
+		long[] page = new long[mPageSize];
+		int n = 0;
+		Cursor cur = mDb.rawQuery(mSql, new String[]{Long.toString(mLast)});
+		try {
+			while (cur.moveToNext()) {
+				page[n++] = cur.getLong(0);
+			}
+		} finally {
+			cur.close();
+		}
+		if (n < mPageSize) {
+			mDone = true;
+		}
+		if (n > 0) {
+			mLast = page[n - 1];
+		}
+		if (n == mPageSize) {
+			return page;
+		}
+		long[] shorter = new long[n];
+		System.arraycopy(page, 0, shorter, 0, n);
+		return shorter;
+	}
+}
@@ -1,11 +1,14 @@
 package com.ichi2.libanki.test;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.ichi2.libanki.Card;
@@ -152,4 +155,84 @@ public class CardTestCase extends InstrumentationTestCase {
 		f.flush();
 		assertTrue(f.cards().get(3).getDid() == newId);
 	}
+
+	// NOT IN LIBANKI
+	/**
+	 * test_genrem and test_gendeck over many notes: after every template change, each note has
+	 * exactly the cards availOrds gives, and generated cards join the deck of the note's other card.
+	 */
+	@LargeTest
+	public void test_genremLarge() throws JSONException {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		// none of the notes is in the model's deck, so cards that ignore the note's deck stand out
+		long[] dids = new long[]{d.getDecks().id("one"), d.getDecks().id("two")};
+		int notes = 2000;
+		int withBack = notes * 2 / 3;
+		for (int i = 0; i < notes; i++) {
+			Note f = d.newNote();
+			f.setitem("Front", "front " + i);
+			f.setitem("Back", i % 3 == 0 ? "" : "back " + i);
+			f.model().put("did", dids[i % dids.length]);
+			d.addNote(f);
+		}
+		JSONObject m = d.getModels().current();
+		m.put("did", 1);
+		Models mm = d.getModels();
+		JSONObject t = mm.newTemplate("rev");
+		t.put("qfmt", "{{Back}}");
+		t.put("afmt", "");
+		mm.addTemplate(m, t);
+		mm.save(m, true);
+		assertGenerated(d, m, notes + withBack);
+		// a template every note can use
+		t = mm.newTemplate("both");
+		t.put("qfmt", "{{Front}}{{Back}}");
+		t.put("afmt", "");
+		mm.addTemplate(m, t);
+		mm.save(m, true);
+		assertGenerated(d, m, 2 * notes + withBack);
+		// a template change that gives the remaining notes a second card too
+		m.getJSONArray("tmpls").getJSONObject(1).put("qfmt", "{{Front}}");
+		mm.save(m, true);
+		assertGenerated(d, m, 3 * notes);
+		assertTrue(d.emptyCids().isEmpty());
+		// and back, which leaves them empty until they are removed
+		m.getJSONArray("tmpls").getJSONObject(1).put("qfmt", "{{Back}}");
+		mm.save(m, true);
+		assertTrue(d.cardCount() == 3 * notes);
+		assertTrue(d.emptyCids().size() == notes - withBack);
+		d.remCards(Utils.toPrimitive(d.emptyCids()));
+		assertGenerated(d, m, 2 * notes + withBack);
+		// removing a template takes its cards along
+		assertTrue(mm.remTemplate(m, m.getJSONArray("tmpls").getJSONObject(2)));
+		assertGenerated(d, m, notes + withBack);
+	}
+
+	/**
+	 * The collection holds the given number of cards, each note has the cards availOrds gives, and
+	 * all cards of a note are in the deck the note was added to.
+	 */
+	private static void assertGenerated(Collection d, JSONObject m, int cards) throws JSONException {
+		assertTrue(d.cardCount() == cards);
+		assertCardsMatchTemplates(d, m);
+		assertTrue(d.getDb().queryScalar("SELECT count() FROM cards a, cards b WHERE a.nid = b.nid AND " +
+				"a.did != b.did") == 0);
+		assertTrue(d.getDb().queryScalar("SELECT count() FROM cards WHERE did = 1") == 0);
+	}
+
+	/** The ords of the cards of every note are those availOrds gives for its fields. */
+	private static void assertCardsMatchTemplates(Collection d, JSONObject m) throws JSONException {
+		Models mm = d.getModels();
+		for (long nid : d.getModels().nids(m)) {
+			String flds = d.getDb().queryColumn(String.class, "SELECT flds FROM notes WHERE id = " + nid, 0).get(0);
+			List<Long> ords = d.getDb().queryColumn(Long.class, "SELECT ord FROM cards WHERE nid = " + nid +
+					" ORDER BY ord", 0);
+			List<Long> avail = new ArrayList<Long>();
+			for (int ord : mm.availOrds(m, flds)) {
+				avail.add((long) ord);
+			}
+			Collections.sort(avail);
+			assertEquals("note " + nid, avail, ords);
+		}
+	}
 }
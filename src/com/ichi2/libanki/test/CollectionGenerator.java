@@ -0,0 +1,411 @@
+package com.ichi2.libanki.test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.ichi2.libanki.Collection;
+import com.ichi2.libanki.Models;
+import com.ichi2.libanki.Note;
+
+/**
+ * Fills a collection with synthetic notes, cards and review history for scale tests and
+ * benchmarks. The same seed and settings always produce the same content.
+ *
+ * Models, decks and tags go through the normal APIs, as there are only a few of them; notes,
+ * cards and revlog rows are written with compiled insert statements inside a single transaction,
+ * which is orders of magnitude faster than addNote for hundreds of thousands of notes.
+ *
+ * Note i has "word i" as its sort field, so generated notes can be found and checked by content.
+ */
+public class CollectionGenerator {
+	private final long mSeed;
+	private int mNotes = 1000;
+	private int mModels = 3;
+	private int mMaxTemplates = 3;
+	private int mDeckDepth = 3;
+	private int mDeckFanout = 3;
+	private int mTags = 200;
+	private int mMediaFiles = 0;
+	private boolean mWriteMedia = false;
+	private double mReviewed = 0.6;
+	private boolean mSequential = false;
+
+	private Random mRandom;
+	private long[] mDids;
+	private List<JSONObject> mModelList;
+	private long mRevlogSeq;
+
+	public CollectionGenerator(long seed) {
+		mSeed = seed;
+	}
+
+	/** Number of notes to add. */
+	public CollectionGenerator notes(int notes) {
+		mNotes = notes;
+		return this;
+	}
+
+	/** Number of models; the first is the current one, the others copies of it with up to maxTemplates templates. */
+	public CollectionGenerator models(int models, int maxTemplates) {
+		mModels = models;
+		mMaxTemplates = maxTemplates;
+		return this;
+	}
+
+	/** A tree of decks below "Gen", depth levels deep with fanout children per deck. */
+	public CollectionGenerator decks(int depth, int fanout) {
+		mDeckDepth = depth;
+		mDeckFanout = fanout;
+		return this;
+	}
+
+	/** Size of the tag vocabulary. Notes get up to three tags, the low numbered ones more often. */
+	public CollectionGenerator tags(int tags) {
+		mTags = tags;
+		return this;
+	}
+
+	/** Number of distinct media files referenced from the back of every tenth note, and whether to create them. */
+	public CollectionGenerator media(int files, boolean write) {
+		mMediaFiles = files;
+		mWriteMedia = write;
+		return this;
+	}
+
+	/** Fraction of cards that have been studied; the rest are new. */
+	public CollectionGenerator reviewed(double fraction) {
+		mReviewed = fraction;
+		return this;
+	}
+
+	/**
+	 * Adds the notes one by one through Collection.addNote instead, for comparison with the bulk
+	 * inserts. There is no review history in this mode, so it needs reviewed(0); the notes and
+	 * cards then match those of the bulk mode with the same seed.
+	 */
+	public CollectionGenerator sequential(boolean sequential) {
+		mSequential = sequential;
+		return this;
+	}
+
+	/** The models of the last populate, in order; note i uses model i % size. */
+	public List<JSONObject> models() {
+		return mModelList;
+	}
+
+	public void populate(Collection col) {
+		if (mSequential && mReviewed > 0) {
+			throw new IllegalStateException("Sequential generation needs reviewed(0)");
+		}
+		mRandom = new Random(mSeed);
+		mRevlogSeq = 0;
+		try {
+			mModelList = makeModels(col);
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+		mDids = makeDecks(col);
+		if (mWriteMedia) {
+			writeMedia(col);
+		}
+		if (mSequential) {
+			addNotes(col);
+		} else {
+			insertRows(col);
+		}
+		ArrayList<String> tags = new ArrayList<String>();
+		for (int i = 0; i < mTags; i++) {
+			tags.add(tag(i));
+		}
+		col.getTags().register(tags);
+		col.save();
+	}
+
+	private List<JSONObject> makeModels(Collection col) throws JSONException {
+		Models mm = col.getModels();
+		List<JSONObject> models = new ArrayList<JSONObject>();
+		JSONObject basic = mm.current();
+		models.add(basic);
+		for (int i = 1; i < mModels; i++) {
+			JSONObject m = mm.copy(basic);
+			m.put("name", "Gen " + i);
+			int templates = 1 + i % mMaxTemplates;
+			for (int t = 1; t < templates; t++) {
+				JSONObject tmpl = mm.newTemplate("Card " + (t + 1));
+				tmpl.put("qfmt", "{{Back}} " + t);
+				tmpl.put("afmt", "{{Front}}");
+				mm.addTemplate(m, tmpl);
+			}
+			mm.save(m);
+			models.add(m);
+		}
+		return models;
+	}
+
+	private long[] makeDecks(Collection col) {
+		List<String> names = new ArrayList<String>();
+		List<String> level = new ArrayList<String>();
+		level.add("Gen");
+		for (int d = 0; d < mDeckDepth; d++) {
+			List<String> next = new ArrayList<String>();
+			for (String parent : level) {
+				for (int i = 0; i < mDeckFanout; i++) {
+					next.add(parent + "::" + d + "-" + i);
+				}
+			}
+			names.addAll(next);
+			level = next;
+		}
+		if (names.isEmpty()) {
+			names.add("Gen");
+		}
+		long[] dids = new long[names.size()];
+		for (int i = 0; i < dids.length; i++) {
+			dids[i] = col.getDecks().id(names.get(i));
+		}
+		return dids;
+	}
+
+	private void writeMedia(Collection col) {
+		File dir = new File(col.getMedia().getDir());
+		try {
+			for (int i = 0; i < mMediaFiles; i++) {
+				BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(new File(dir, media(i))));
+				bos.write(("generated " + i).getBytes());
+				bos.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void insertRows(Collection col) {
+		long now = System.currentTimeMillis();
+		long nid = Math.max(now, col.getDb().queryLongScalar("SELECT max(id) FROM notes", false) + 1);
+		long cid = Math.max(now, col.getDb().queryLongScalar("SELECT max(id) FROM cards", false) + 1);
+		long mod = now / 1000;
+		long today = col.getSched().getToday();
+		long pos;
+		try {
+			pos = col.getConf().getLong("nextPos");
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+		SQLiteDatabase db = col.getDb().getDatabase();
+		db.beginTransaction();
+		SQLiteStatement notes = db.compileStatement("INSERT INTO notes VALUES (?,?,?,?,?,?,?,?,?,?,?)");
+		SQLiteStatement cards = db.compileStatement(
+				"INSERT INTO cards VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+		SQLiteStatement revlog = db.compileStatement("INSERT INTO revlog VALUES (?,?,?,?,?,?,?,?,?)");
+		try {
+			for (int i = 0; i < mNotes; i++, nid++, pos++) {
+				JSONObject m = mModelList.get(i % mModelList.size());
+				String front = front(i);
+				String back = back(i);
+				notes.bindLong(1, nid);
+				notes.bindString(2, Long.toString(mRandom.nextLong() & Long.MAX_VALUE, 36));
+				notes.bindLong(3, m.getLong("id"));
+				notes.bindLong(4, mod);
+				notes.bindLong(5, -1);
+				notes.bindString(6, noteTags());
+				notes.bindString(7, front + "\u001f" + back);
+				notes.bindString(8, front);
+				notes.bindLong(9, checksum(front));
+				notes.bindLong(10, 0);
+				notes.bindString(11, "");
+				notes.executeInsert();
+				long did = mDids[mRandom.nextInt(mDids.length)];
+				int templates = m.getJSONArray("tmpls").length();
+				for (int ord = 0; ord < templates; ord++, cid++) {
+					insertCard(cards, revlog, cid, nid, did, ord, now, pos, today);
+				}
+			}
+			db.setTransactionSuccessful();
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		} finally {
+			notes.close();
+			cards.close();
+			revlog.close();
+			db.endTransaction();
+		}
+		try {
+			col.getConf().put("nextPos", pos);
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** The same notes as insertRows, drawing the same random numbers, through addNote. */
+	private void addNotes(Collection col) {
+		Models mm = col.getModels();
+		try {
+			for (int i = 0; i < mNotes; i++) {
+				JSONObject m = mModelList.get(i % mModelList.size());
+				mm.setCurrent(m);
+				Note f = col.newNote();
+				f.setitem("Front", front(i));
+				f.setitem("Back", back(i));
+				// the guid is chosen by addNote
+				mRandom.nextLong();
+				f.setTagsFromStr(noteTags());
+				f.model().put("did", mDids[mRandom.nextInt(mDids.length)]);
+				col.addNote(f);
+				for (int ord = 0; ord < m.getJSONArray("tmpls").length(); ord++) {
+					// insertCard decides whether the card was studied
+					mRandom.nextDouble();
+				}
+			}
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		} finally {
+			mm.setCurrent(mModelList.get(0));
+		}
+	}
+
+	private String front(int i) {
+		return "word " + i;
+	}
+
+	private String back(int i) {
+		String back = "meaning " + mRandom.nextInt(1000);
+		if (mMediaFiles > 0 && i % 10 == 0) {
+			back += " <img src='" + media(i / 10 % mMediaFiles) + "'>";
+		}
+		return back;
+	}
+
+	/** Adds one card and, if it was studied, its history. */
+	private void insertCard(SQLiteStatement cards, SQLiteStatement revlog, long cid, long nid, long did,
+			int ord, long now, long pos, long today) {
+		long mod = now / 1000;
+		int type = 0;
+		int queue = 0;
+		long due = pos;
+		int ivl = 0;
+		int factor = 0;
+		int reps = 0;
+		int lapses = 0;
+		if (mRandom.nextDouble() < mReviewed) {
+			// intervals of mature collections are roughly log-normal: most within a few weeks, a long tail of years
+			ivl = (int) Math.max(1, Math.min(3650, Math.round(Math.exp(2.5 + 1.3 * mRandom.nextGaussian()))));
+			factor = 1300 + 100 * mRandom.nextInt(16);
+			reps = 2 + (int) (Math.log(ivl) * 1.5) + mRandom.nextInt(3);
+			lapses = factor < 2000 ? 1 + mRandom.nextInt(4) : 0;
+			type = 2;
+			queue = mRandom.nextInt(50) == 0 ? -1 : 2;
+			// a tenth is overdue
+			due = today + mRandom.nextInt(ivl + 1) - (mRandom.nextInt(10) == 0 ? ivl / 3 + 1 : 0);
+			// intervals after each review, growing towards the current one
+			int[] ivls = new int[reps];
+			int cur = 1;
+			for (int r = 0; r < reps; r++) {
+				ivls[r] = r == reps - 1 ? ivl : Math.max(1, Math.min(ivl, cur * 2 + mRandom.nextInt(cur + 1)));
+				cur = ivls[r];
+			}
+			// the last review was ivl days before due, each earlier one the then interval before that
+			long day = due - today - ivl;
+			for (int r = reps - 2; r >= 0; r--) {
+				day -= ivls[r];
+			}
+			for (int r = 0; r < reps; r++) {
+				// one id range per day, and a running sequence within it, keeps ids unique and in order
+				revlog.bindLong(1, (now / 86400000 + day) * 86400000 + mRevlogSeq++ % 86400000);
+				revlog.bindLong(2, cid);
+				revlog.bindLong(3, -1);
+				revlog.bindLong(4, mRandom.nextInt(10) == 0 ? 1 : 2 + mRandom.nextInt(3));
+				revlog.bindLong(5, r == 0 ? -600 : ivls[r]);
+				revlog.bindLong(6, r == 0 ? 0 : r == 1 ? -600 : ivls[r - 1]);
+				revlog.bindLong(7, r == 0 ? 0 : factor);
+				revlog.bindLong(8, 2000 + mRandom.nextInt(30000));
+				revlog.bindLong(9, r == 0 ? 0 : 1);
+				revlog.executeInsert();
+				day += ivls[r];
+			}
+		}
+		cards.bindLong(1, cid);
+		cards.bindLong(2, nid);
+		cards.bindLong(3, did);
+		cards.bindLong(4, ord);
+		cards.bindLong(5, mod);
+		cards.bindLong(6, -1);
+		cards.bindLong(7, type);
+		cards.bindLong(8, queue);
+		cards.bindLong(9, due);
+		cards.bindLong(10, ivl);
+		cards.bindLong(11, factor);
+		cards.bindLong(12, reps);
+		cards.bindLong(13, lapses);
+		cards.bindLong(14, 0);
+		cards.bindLong(15, 0);
+		cards.bindLong(16, 0);
+		cards.bindLong(17, 0);
+		cards.bindString(18, "");
+		cards.executeInsert();
+	}
+
+	/** Up to three distinct tags, skewed towards the start of the vocabulary. */
+	private String noteTags() {
+		if (mTags == 0) {
+			return "";
+		}
+		int count = mRandom.nextInt(4);
+		List<String> tags = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			double r = mRandom.nextDouble();
+			String t = tag((int) (r * r * mTags));
+			if (!tags.contains(t)) {
+				tags.add(t);
+			}
+		}
+		if (tags.isEmpty()) {
+			return "";
+		}
+		// in the same order as the tag canonicalisation of Note.flush
+		Collections.sort(tags);
+		StringBuilder sb = new StringBuilder(" ");
+		for (String t : tags) {
+			sb.append(t).append(" ");
+		}
+		return sb.toString();
+	}
+
+	public static String tag(int i) {
+		return "gen" + i;
+	}
+
+	public static String media(int i) {
+		return "gen" + i + ".png";
+	}
+
+	/** Same value as the csum column of addNote for a first field without markup. */
+	public static long checksum(String field) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA1").digest(field.getBytes("UTF-8"));
+			long sum = 0;
+			for (int i = 0; i < 4; i++) {
+				sum = (sum << 8) | (digest[i] & 0xff);
+			}
+			return sum;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
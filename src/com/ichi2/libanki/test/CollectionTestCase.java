@@ -2,15 +2,23 @@ package com.ichi2.libanki.test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
 
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
@@ -224,4 +232,222 @@ public class CollectionTestCase extends InstrumentationTestCase {
             throw new RuntimeException(e);
         }
     }
+
+    // NOT IN LIBANKI
+    /**
+     * A statement string built per call, bound arguments and a compiled statement all write the same
+     * rows, so the cheaper forms can replace the first; CollectionBenchmark measures what each costs.
+     */
+    @MediumTest
+    public void test_statementForms() {
+        Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
+        for (int i = 0; i < 50; i++) {
+            Note f = deck.newNote();
+            f.setitem("Front", Integer.toString(i));
+            deck.addNote(f);
+        }
+        List<Long> cids = deck.getDb().queryColumn(Long.class, "SELECT id FROM cards", 0);
+        int calls = 200;
+        SQLiteDatabase db = deck.getDb().getDatabase();
+        // a new statement string for every call, as Card.flush and friends build them today
+        db.beginTransaction();
+        for (int i = 0; i < calls; i++) {
+            deck.getDb().execute("UPDATE cards SET reps = " + i + " WHERE id = " + cids.get(i % cids.size()));
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        long[] digest = Shared.tableDigest(deck, "cards");
+        deck.getDb().execute("UPDATE cards SET reps = 0");
+        // one statement string with bound arguments through the wrapper
+        db.beginTransaction();
+        for (int i = 0; i < calls; i++) {
+            deck.getDb().execute("UPDATE cards SET reps = ? WHERE id = ?", new Object[]{i, cids.get(i % cids.size())});
+        }
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        assertTrue(Arrays.equals(digest, Shared.tableDigest(deck, "cards")));
+        deck.getDb().execute("UPDATE cards SET reps = 0");
+        // compiled once and reused, as a statement cache in the wrapper would do
+        db.beginTransaction();
+        SQLiteStatement stmt = db.compileStatement("UPDATE cards SET reps = ? WHERE id = ?");
+        for (int i = 0; i < calls; i++) {
+            stmt.bindLong(1, i);
+            stmt.bindLong(2, cids.get(i % cids.size()));
+            stmt.execute();
+        }
+        stmt.close();
+        db.setTransactionSuccessful();
+        db.endTransaction();
+        assertTrue(Arrays.equals(digest, Shared.tableDigest(deck, "cards")));
+    }
+
+    // NOT IN LIBANKI
+    /**
+     * Renders through fresh card objects after every kind of change. Mod times only have a
+     * resolution of one second, so several changes happen within the same second on purpose: any
+     * rendered HTML kept across card objects must not be keyed on them alone.
+     */
+    @MediumTest
+    public void test_renderFreshness() throws JSONException {
+        Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
+        Models mm = deck.getModels();
+        JSONObject m = mm.current();
+        JSONObject field = mm.newField(m.toString());
+        field.put("name", "Hint");
+        mm.addField(m, field);
+        m.getJSONArray("tmpls").getJSONObject(0).put("qfmt", "{{Front}}{{hint:Hint}}");
+        mm.save(m);
+        Note f = deck.newNote();
+        f.setitem("Front", "one");
+        f.setitem("Back", "two");
+        f.setitem("Hint", "three");
+        deck.addNote(f);
+        assertTrue(f.cards().get(0).getQuestion(false).contains("three</div>"));
+        assertTrue(f.cards().get(0).getAnswer(false).endsWith("two"));
+        // two note edits in the same second
+        f.setitem("Front", "uno");
+        f.flush();
+        assertTrue(f.cards().get(0).getQuestion(false).contains("uno"));
+        f.setitem("Front", "eins");
+        f.setitem("Hint", "");
+        f.flush();
+        String q = f.cards().get(0).getQuestion(false);
+        assertTrue(q.endsWith("eins"));
+        assertFalse(q.contains("uno"));
+        // two template edits in the same second
+        m.getJSONArray("tmpls").getJSONObject(0).put("qfmt", "{{kana:Front}}");
+        mm.save(m);
+        f.setitem("Front", "foo[abc]");
+        f.flush();
+        assertTrue(f.cards().get(0).getQuestion(false).endsWith("abc"));
+        m.getJSONArray("tmpls").getJSONObject(0).put("qfmt", "{{kanji:Front}}");
+        mm.save(m);
+        assertTrue(f.cards().get(0).getQuestion(false).endsWith("foo"));
+        m.getJSONArray("tmpls").getJSONObject(0).put("afmt", "{{FrontSide}}<hr id=answer>{{Back}}!");
+        mm.save(m);
+        assertTrue(f.cards().get(0).getAnswer(false).endsWith("two!"));
+        // a second template, then the order of the two swapped
+        JSONObject t = mm.newTemplate("Reverse");
+        t.put("qfmt", "{{Back}}");
+        t.put("afmt", "{{Front}}");
+        mm.addTemplate(m, t);
+        mm.save(m, true);
+        assertTrue(f.cards().size() == 2);
+        Card c0 = f.cards().get(0);
+        Card c1 = f.cards().get(1);
+        assertTrue(c0.getQuestion(false).endsWith("foo"));
+        assertTrue(c1.getQuestion(false).endsWith("two"));
+        mm.moveTemplate(m, m.getJSONArray("tmpls").getJSONObject(0), 1);
+        c0.load();
+        c1.load();
+        assertTrue(c0.getQuestion(true).endsWith("foo"));
+        assertTrue(c1.getQuestion(true).endsWith("two"));
+        // the same card object asked to reload sees the latest note
+        f.setitem("Back", "zwei");
+        f.flush();
+        assertTrue(c1.getQuestion(true).endsWith("zwei"));
+        // and so does every card object of an identical note in another collection
+        Collection other = Shared.getEmptyDeck(getInstrumentation().getContext());
+        Note g = other.newNote();
+        g.setitem("Front", "foo[abc]");
+        g.setitem("Back", "two");
+        other.addNote(g);
+        assertTrue(g.cards().get(0).getQuestion(false).endsWith("foo[abc]"));
+    }
+
+    // NOT IN LIBANKI
+    @LargeTest
+    public void test_generator() throws JSONException {
+        Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
+        long t = System.currentTimeMillis();
+        CollectionGenerator gen = new CollectionGenerator(7).notes(5000).models(3, 3).decks(2, 4).media(20, true);
+        gen.populate(deck);
+        Log.i(Shared.TAG, "test_generator: 5000 notes in " + (System.currentTimeMillis() - t) + "ms");
+        assertTrue(deck.noteCount() == 5000);
+        // notes take the models in turn, which have 1, 2 and 3 templates, and get a card per template
+        List<JSONObject> models = gen.models();
+        assertTrue(models.size() == 3);
+        int cards = 0;
+        for (int i = 0; i < 5000; i++) {
+            cards += models.get(i % models.size()).getJSONArray("tmpls").length();
+        }
+        assertTrue(cards == 1667 * 1 + 1667 * 2 + 1666 * 3);
+        assertTrue(deck.cardCount() == cards);
+        assertTrue(deck.getDecks().allNames().size() >= 1 + 4 + 16);
+        assertTrue(deck.getDb().queryLongScalar("SELECT count() FROM revlog") > 0);
+        // no revlog entry may point to a missing card, and no card to a missing note
+        assertTrue(deck.getDb().queryLongScalar("SELECT count() FROM revlog WHERE cid NOT IN (SELECT id FROM cards)") == 0);
+        assertTrue(deck.getDb().queryLongScalar("SELECT count() FROM cards WHERE nid NOT IN (SELECT id FROM notes)") == 0);
+        // flushing a generated note as the app would must not change it
+        long nid = deck.getDb().queryLongScalar("SELECT id FROM notes WHERE sfld = 'word 42'");
+        String sql = "SELECT sfld || csum || flds || tags FROM notes WHERE id = " + nid;
+        String before = deck.getDb().queryColumn(String.class, sql, 0).get(0);
+        Note f = deck.getNote(nid);
+        f.flush();
+        assertEquals(before, deck.getDb().queryColumn(String.class, sql, 0).get(0));
+        // the app can study and search what was generated
+        assertTrue(deck.findCards("tag:" + CollectionGenerator.tag(0)).size() > 0);
+        deck.getDecks().select(deck.getDecks().id("Gen"));
+        deck.reset();
+        Card c = deck.getSched().getCard();
+        assertNotNull(c);
+        deck.getSched().answerCard(c, 3);
+        // the same seed generates the same content
+        Collection other = Shared.getEmptyDeck(getInstrumentation().getContext());
+        new CollectionGenerator(7).notes(5000).models(3, 3).decks(2, 4).media(20, false).populate(other);
+        assertTrue(Arrays.equals(Shared.tableDigest(deck, "notes", "id", "mid", "mod"),
+                Shared.tableDigest(other, "notes", "id", "mid", "mod")));
+    }
+
+    // NOT IN LIBANKI
+    /** Notes and cards written by the bulk inserts of CollectionGenerator are the ones addNote writes. */
+    @LargeTest
+    public void test_bulkMatchesAddNote() throws JSONException {
+        int notes = 3000;
+        Collection bulk = Shared.getEmptyDeck(getInstrumentation().getContext());
+        long t = System.currentTimeMillis();
+        new CollectionGenerator(22).notes(notes).reviewed(0).media(50, false).populate(bulk);
+        long bulkTime = System.currentTimeMillis() - t;
+        Collection sequential = Shared.getEmptyDeck(getInstrumentation().getContext());
+        t = System.currentTimeMillis();
+        new CollectionGenerator(22).notes(notes).reviewed(0).media(50, false).sequential(true).populate(sequential);
+        long sequentialTime = System.currentTimeMillis() - t;
+        Log.i(Shared.TAG, String.format(Locale.US, "test_bulkMatchesAddNote: %d notes/s bulk, %d notes/s addNote",
+                notes * 1000L / Math.max(1, bulkTime), notes * 1000L / Math.max(1, sequentialTime)));
+        assertEquals(rows(sequential), rows(bulk));
+        assertTrue(Arrays.equals(sequential.getTags().all(), bulk.getTags().all()));
+    }
+
+    /**
+     * Every card with its note, ids replaced by names so that two collections can be compared. The
+     * due of new cards is their position, which starts at the same value in empty collections.
+     */
+    private static List<String> rows(Collection col) throws JSONException {
+        List<String> rows = new ArrayList<String>();
+        Cursor cur = col.getDb().getDatabase().rawQuery("SELECT n.sfld, n.flds, n.tags, n.csum, n.mid, n.usn, " +
+                "n.flags, n.data, c.ord, c.did, c.type, c.queue, c.due, c.ivl, c.factor, c.reps, c.lapses, " +
+                "c.left, c.odue, c.odid, c.usn, c.flags, c.data FROM cards c, notes n WHERE c.nid = n.id", null);
+        try {
+            while (cur.moveToNext()) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < cur.getColumnCount(); i++) {
+                    String name = cur.getColumnName(i);
+                    String value;
+                    if (name.equals("mid")) {
+                        value = col.getModels().get(cur.getLong(i)).getString("name");
+                    } else if (name.equals("did")) {
+                        value = col.getDecks().name(cur.getLong(i));
+                    } else {
+                        value = cur.getString(i);
+                    }
+                    sb.append(name).append("=").append(value).append("\u0001");
+                }
+                rows.add(sb.toString());
+            }
+        } finally {
+            cur.close();
+        }
+        Collections.sort(rows);
+        return rows;
+    }
 }
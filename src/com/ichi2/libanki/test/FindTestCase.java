@@ -15,7 +15,9 @@
  ****************************************************************************************/
 package com.ichi2.libanki.test;
 
+import android.database.Cursor;
 import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.ichi2.anki.Pair;
@@ -30,8 +32,10 @@ import org.json.JSONObject;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Random;
 
 public class FindTestCase extends InstrumentationTestCase {
 	public FindTestCase(String name) {
@@ -268,6 +272,236 @@ public class FindTestCase extends InstrumentationTestCase {
 		}
 	}
 
+	// NOT IN LIBANKI
+	/**
+	 * The card browser re-issues the same search after every edit. Whatever is kept between two
+	 * identical searches must not hide changes made in between, including ones that bypass the
+	 * collection mod time, a new day, or changed sort settings.
+	 */
+	@MediumTest
+	public void test_repeatedSearch() throws JSONException {
+		Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
+		for (int i = 0; i < 10; i++) {
+			Note f = deck.newNote();
+			f.setitem("Front", "word " + i);
+			f.setitem("Back", i % 2 == 0 ? "even" : "odd");
+			deck.addNote(f);
+		}
+		for (int round = 0; round < 2; round++) {
+			assertTrue(deck.findCards("deck:default is:due").size() == 0);
+			assertTrue(deck.findCards("even").size() == 5);
+			assertTrue(deck.findCards("tag:marked").size() == 0);
+		}
+		// note edits
+		List<Long> nids = deck.getDb().queryColumn(Long.class, "SELECT id FROM notes ORDER BY id", 0);
+		Note f = deck.getNote(nids.get(1));
+		f.setitem("Back", "even");
+		f.flush();
+		assertTrue(deck.findCards("even").size() == 6);
+		assertTrue(deck.findReplace(Arrays.asList(new Long[]{nids.get(0)}), "even", "odd") == 1);
+		assertTrue(deck.findCards("even").size() == 5);
+		// tags
+		deck.getTags().bulkAdd(Arrays.asList(new Long[]{nids.get(2)}), "marked");
+		assertTrue(deck.findCards("tag:marked").size() == 1);
+		// card state, through the model classes and through plain SQL
+		Card c = deck.getCard(deck.findCards("nid:" + nids.get(3)).get(0));
+		c.setType(2);
+		c.setQueue(2);
+		c.setDue(deck.getSched().getToday());
+		c.flush();
+		assertTrue(deck.findCards("deck:default is:due").size() == 1);
+		deck.getDb().execute("UPDATE cards SET type = 2, queue = 2, due = " + (deck.getSched().getToday() + 1) +
+				" WHERE nid = " + nids.get(4));
+		assertTrue(deck.findCards("deck:default is:due").size() == 1);
+		// a new day makes the second card due without touching any row
+		deck.getSched().setToday(deck.getSched().getToday() + 1);
+		assertTrue(deck.findCards("deck:default is:due").size() == 2);
+		// moving cards to another deck
+		long did = deck.getDecks().id("Default::Child");
+		deck.getDb().execute("UPDATE cards SET did = " + did + " WHERE nid = " + nids.get(5));
+		assertTrue(deck.findCards("deck:default::child").size() == 1);
+		assertTrue(deck.findCards("deck:default -deck:default::*").size() == 9);
+		// the same query in another order
+		deck.getConf().put("sortType", "noteFld");
+		deck.getConf().put("sortBackwards", false);
+		List<Long> forward = deck.findCards("", true);
+		deck.getConf().put("sortBackwards", true);
+		List<Long> backward = deck.findCards("", true);
+		assertTrue(forward.get(0).equals(backward.get(backward.size() - 1)));
+		// removed notes
+		deck.remNotes(new long[]{nids.get(6)});
+		assertTrue(deck.findCards("").size() == 9);
+		assertTrue(deck.findCards("even").size() == 4);
+	}
+
+	// NOT IN LIBANKI
+	/**
+	 * Text, phrase and field searches checked against a plain scan of the note fields after every
+	 * kind of note change, so an index maintained next to the notes table can be swapped in for the
+	 * LIKE scans without changing any result.
+	 */
+	@LargeTest
+	public void test_textSearchRandomized() {
+		Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
+		String[] words = new String[]{"cat", "dog", "goats are", "are goats", "fun", "sheep", "hello<b>world</b>", "Cat"};
+		String[] queries = new String[]{"cat", "dog", "cat -dog", "\"goats are\"", "are goats", "helloworld",
+				"front:dog", "-front:dog", "back:sheep", "front:go*", "front:"};
+		Random rnd = new Random(13);
+		List<Long> nids = new ArrayList<Long>();
+		int emptyFronts = 0;
+		for (int step = 0; step < 200; step++) {
+			int op = nids.isEmpty() ? 0 : rnd.nextInt(5);
+			if (op <= 1) {
+				Note f = deck.newNote();
+				f.setitem("Front", words[rnd.nextInt(words.length)]);
+				f.setitem("Back", words[rnd.nextInt(words.length)] + " " + words[rnd.nextInt(words.length)]);
+				if (deck.addNote(f) > 0) {
+					nids.add(f.getId());
+				}
+			} else if (op == 2) {
+				Note f = deck.getNote(nids.get(rnd.nextInt(nids.size())));
+				if (rnd.nextInt(4) == 0) {
+					// a note without a front gets no cards from addNote, but keeps them when edited
+					f.setitem("Front", "");
+				} else {
+					f.setitem(rnd.nextBoolean() ? "Front" : "Back", words[rnd.nextInt(words.length)]);
+				}
+				f.flush();
+			} else if (op == 3) {
+				String src = words[rnd.nextInt(words.length)];
+				String dst = words[rnd.nextInt(words.length)];
+				if (rnd.nextBoolean()) {
+					deck.findReplace(new ArrayList<Long>(nids), src, dst, "Front");
+				} else {
+					deck.findReplace(new ArrayList<Long>(nids), src, dst);
+				}
+			} else {
+				long nid = nids.remove(rnd.nextInt(nids.size()));
+				deck.remNotes(new long[]{nid});
+			}
+			for (String query : queries) {
+				List<Long> found = deck.findCards(query);
+				Collections.sort(found);
+				assertEquals("step " + step + ", query " + query, scan(deck, query), found);
+				if (query.equals("front:") && !found.isEmpty()) {
+					emptyFronts++;
+				}
+			}
+		}
+		// the empty field search was compared against actual matches, not only against nothing
+		assertTrue(emptyFronts > 0);
+	}
+
+	/** Evaluates the handful of query forms used above by reading every note. */
+	private List<Long> scan(Collection deck, String query) {
+		List<Long> nids = new ArrayList<Long>();
+		Cursor cur = deck.getDb().getDatabase().rawQuery("SELECT id, flds, sfld FROM notes", null);
+		try {
+			while (cur.moveToNext()) {
+				String[] flds = cur.getString(1).split("\u001f", -1);
+				String all = cur.getString(1).toLowerCase(Locale.US);
+				String sfld = cur.getString(2).toLowerCase(Locale.US);
+				boolean match = true;
+				for (String term : scanTerms(query)) {
+					boolean neg = term.startsWith("-");
+					if (neg) {
+						term = term.substring(1);
+					}
+					boolean hit;
+					int colon = term.indexOf(':');
+					if (colon > 0) {
+						String val = flds[term.startsWith("front") ? 0 : 1].toLowerCase(Locale.US);
+						String want = term.substring(colon + 1);
+						hit = want.endsWith("*") ? val.startsWith(want.substring(0, want.length() - 1)) : val.equals(want);
+					} else {
+						hit = all.contains(term) || sfld.contains(term);
+					}
+					match &= hit != neg;
+				}
+				if (match) {
+					nids.add(cur.getLong(0));
+				}
+			}
+		} finally {
+			cur.close();
+		}
+		List<Long> cids = new ArrayList<Long>();
+		for (long nid : nids) {
+			cids.addAll(deck.getDb().queryColumn(Long.class, "SELECT id FROM cards WHERE nid = " + nid, 0));
+		}
+		Collections.sort(cids);
+		return cids;
+	}
+
+	private static List<String> scanTerms(String query) {
+		List<String> terms = new ArrayList<String>();
+		if (query.startsWith("\"")) {
+			terms.add(query.substring(1, query.length() - 1));
+		} else {
+			terms.addAll(Arrays.asList(query.split(" ")));
+		}
+		return terms;
+	}
+
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_pagedSearch() {
+		Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
+		long child = deck.getDecks().id("Default::Child");
+		for (int i = 0; i < 57; i++) {
+			Note f = deck.newNote();
+			f.setitem("Front", "word " + i);
+			deck.addNote(f);
+			if (i % 3 == 0) {
+				deck.getDb().execute("UPDATE cards SET did = " + child + " WHERE nid = " + f.getId());
+			}
+		}
+		// the pages together are what findCards returns
+		assertEquals(sorted(deck.findCards("")), drain(new CardPager(deck, null, 10)));
+		assertEquals(sorted(deck.findCards("deck:default::child")), drain(new CardPager(deck, "c.did = " + child, 7)));
+		assertTrue(drain(new CardPager(deck, "c.did = 12345", 7)).isEmpty());
+		// a page size dividing the count exactly ends with an empty page
+		CardPager pager = new CardPager(deck, null, 19);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(pager.next().length == 19);
+		}
+		assertTrue(pager.next().length == 0);
+		// changes between pages: no id twice, and every card that stays is seen once
+		List<Long> before = sorted(deck.findCards(""));
+		pager = new CardPager(deck, null, 10);
+		List<Long> seen = new ArrayList<Long>();
+		for (long id : pager.next()) {
+			seen.add(id);
+		}
+		long returned = before.get(3);
+		long ahead = before.get(30);
+		deck.remCards(new long[]{returned, ahead});
+		Note f = deck.newNote();
+		f.setitem("Front", "late");
+		deck.addNote(f);
+		long added = f.cards().get(0).getId();
+		seen.addAll(drain(pager));
+		List<Long> expected = new ArrayList<Long>(before);
+		expected.remove(Long.valueOf(ahead));
+		expected.add(added);
+		assertEquals(expected, seen);
+	}
+
+	private static List<Long> drain(CardPager pager) {
+		List<Long> ids = new ArrayList<Long>();
+		for (long[] page = pager.next(); page.length > 0; page = pager.next()) {
+			for (long id : page) {
+				ids.add(id);
+			}
+		}
+		return ids;
+	}
+
+	private static List<Long> sorted(List<Long> ids) {
+		Collections.sort(ids);
+		return ids;
+	}
+
 	@MediumTest
 	public void test_findReplace() {
 		Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
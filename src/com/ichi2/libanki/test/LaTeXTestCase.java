@@ -1,12 +1,18 @@
 package com.ichi2.libanki.test;
 
 import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Note;
 
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
 public class LaTeXTestCase extends InstrumentationTestCase {
 	public LaTeXTestCase(String name) {
 		setName(name);
@@ -33,4 +39,57 @@ public class LaTeXTestCase extends InstrumentationTestCase {
 		d.addNote(f);
 		assertTrue(f.cards().get(0).getQuestion(false).equals(oldcard.getQuestion(false)));
 	}
+
+	// NOT IN LIBANKI
+	/**
+	 * The image name of a snippet only depends on the snippet, across notes, fields and edits, so
+	 * images can be rendered ahead of time for a whole deck, one per distinct name.
+	 */
+	@LargeTest
+	public void test_latexLinks() {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		int snippets = 20;
+		int notes = 60;
+		Map<String, String> links = new HashMap<String, String>();
+		for (int i = 0; i < notes; i++) {
+			Note f = d.newNote();
+			f.setitem("Front", "[latex]x^{" + (i % snippets) + "}[/latex]");
+			f.setitem("Back", "[$]x^{" + (i % 7) + "}[/$] and [$$]\\sum_" + (i % 3) + "[/$$]");
+			d.addNote(f);
+		}
+		for (long nid : d.getDb().queryColumn(Long.class, "SELECT id FROM notes", 0)) {
+			Note f = d.getNote(nid);
+			checkLinks(d, f, links);
+		}
+		// every distinct snippet, with its delimiters, has a link of its own
+		assertTrue(links.size() == snippets + 7 + 3);
+		assertTrue(new HashSet<String>(links.values()).size() == links.size());
+		// an edited note switches to the link its new snippet already has
+		Note f = d.getNote(d.getDb().queryLongScalar("SELECT id FROM notes LIMIT 1"));
+		f.setitem("Front", "[latex]x^{" + (snippets - 1) + "}[/latex]");
+		f.setitem("Back", "[$]x^{6}[/$] and [$$]\\sum_2[/$$]");
+		f.flush();
+		checkLinks(d, f, links);
+		assertTrue(links.size() == snippets + 7 + 3);
+	}
+
+	/** Records the link of each snippet of the note, failing if a snippet got another link before. */
+	private static void checkLinks(Collection d, Note f, Map<String, String> links) {
+		String[] snippets = new String[]{
+				"latex:" + f.getitem("Front"),
+				"$:" + f.getitem("Back").substring(0, f.getitem("Back").indexOf(" and ")),
+				"$$:" + f.getitem("Back").substring(f.getitem("Back").indexOf(" and ") + 5)};
+		Card c = f.cards().get(0);
+		List<String> files = d.getMedia().filesInStr(c.getAnswer(true));
+		assertTrue(files.size() == 3);
+		for (int i = 0; i < 3; i++) {
+			assertTrue(files.get(i).endsWith(".png"));
+			String known = links.get(snippets[i]);
+			if (known == null) {
+				links.put(snippets[i], files.get(i));
+			} else {
+				assertEquals(known, files.get(i));
+			}
+		}
+	}
 }
@@ -1,15 +1,21 @@
 package com.ichi2.libanki.test;
 
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import android.content.Context;
 import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.ichi2.libanki.Collection;
@@ -57,6 +63,58 @@ public class MediaTestCase extends InstrumentationTestCase {
 		}
 	}
 	
+	// NOT IN LIBANKI
+	/**
+	 * test_add with files larger than any copy or hash buffer, differing only in the last byte, so
+	 * the comparison has to look at the whole file and the copy has to be exact.
+	 */
+	@LargeTest
+	public void test_addLarge() throws IOException {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		File src = new File(getInstrumentation().getTargetContext().getCacheDir(), "big.bin");
+		byte[] data = new byte[3 * 1024 * 1024 + 17];
+		new Random(3).nextBytes(data);
+		try {
+			writeBytes(src, data);
+			assertTrue(d.getMedia().addFile(src.getAbsolutePath()).equals("big.bin"));
+			assertTrue(Arrays.equals(data, readBytes(new File(d.getMedia().getDir(), "big.bin"))));
+			// same content again
+			assertTrue(d.getMedia().addFile(src.getAbsolutePath()).equals("big.bin"));
+			// only the last byte differs
+			data[data.length - 1] ^= 1;
+			writeBytes(src, data);
+			assertTrue(d.getMedia().addFile(src.getAbsolutePath()).equals("big (1).bin"));
+			assertTrue(Arrays.equals(data, readBytes(new File(d.getMedia().getDir(), "big (1).bin"))));
+			// only the first byte differs from the second
+			data[0] ^= 1;
+			writeBytes(src, data);
+			assertTrue(d.getMedia().addFile(src.getAbsolutePath()).equals("big (2).bin"));
+			// an empty file
+			writeBytes(src, new byte[0]);
+			assertTrue(d.getMedia().addFile(src.getAbsolutePath()).equals("big (3).bin"));
+			assertTrue(new File(d.getMedia().getDir(), "big (3).bin").length() == 0);
+		} finally {
+			src.delete();
+		}
+	}
+
+	private static void writeBytes(File file, byte[] data) throws IOException {
+		BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(file));
+		bos.write(data);
+		bos.close();
+	}
+
+	private static byte[] readBytes(File file) throws IOException {
+		byte[] data = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+		return data;
+	}
+
 	@MediumTest
 	public void test_strings() {
 		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
@@ -74,6 +132,61 @@ public class MediaTestCase extends InstrumentationTestCase {
 		assertTrue(d.getMedia().escapeImages("<img src=\"foo bar.jpg\">").equals("<img src=\"foo%20bar.jpg\">"));
 	}
 
+	// NOT IN LIBANKI
+	/**
+	 * filesInStr, strip and escapeImages on generated fields mixing markup, quoted image tags and
+	 * sound tags, checked against what each reference contributes on its own.
+	 */
+	@MediumTest
+	public void test_stringsRandomized() {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		String[] text = new String[]{"abc ", "<b>bold</b>", "<br>", "&nbsp;", "x &gt; y", "<div class='q'>q</div>", ""};
+		String[] names = new String[]{"a.jpg", "foo bar.png", "x-1.gif", "snd.mp3", "two  spaces.jpg"};
+		Random rnd = new Random(19);
+		for (int n = 0; n < 300; n++) {
+			StringBuilder field = new StringBuilder();
+			StringBuilder stripped = new StringBuilder();
+			StringBuilder escaped = new StringBuilder();
+			List<String> files = new ArrayList<String>();
+			int parts = rnd.nextInt(12);
+			for (int i = 0; i < parts; i++) {
+				String name = names[rnd.nextInt(names.length)];
+				String piece;
+				String escapedPiece;
+				switch (rnd.nextInt(4)) {
+					case 0:
+						piece = "<img src='" + name + "'>";
+						escapedPiece = "<img src='" + name.replace(" ", "%20") + "'>";
+						files.add(name);
+						break;
+					case 1:
+						piece = "<img class=\"c\" src=\"" + name + "\" alt=\"\">";
+						escapedPiece = "<img class=\"c\" src=\"" + name.replace(" ", "%20") + "\" alt=\"\">";
+						files.add(name);
+						break;
+					case 2:
+						piece = "[sound:" + name + "]";
+						escapedPiece = piece;
+						files.add(name);
+						break;
+					default:
+						piece = text[rnd.nextInt(text.length)];
+						escapedPiece = piece;
+						stripped.append(piece);
+				}
+				field.append(piece);
+				escaped.append(escapedPiece);
+			}
+			String s = field.toString();
+			List<String> found = new ArrayList<String>(d.getMedia().filesInStr(s));
+			Collections.sort(files);
+			Collections.sort(found);
+			assertEquals(s, files, found);
+			assertEquals(s, stripped.toString(), d.getMedia().strip(s));
+			assertEquals(s, escaped.toString(), d.getMedia().escapeImages(s));
+		}
+	}
+
 	@MediumTest
 	public void test_deckIntegration() {
 		Context ctx = getInstrumentation().getContext();
@@ -114,6 +227,61 @@ public class MediaTestCase extends InstrumentationTestCase {
 		assertTrue(ret.get(1).equals(Arrays.asList(new String[]{"foo.jpg"})));
 	}
 
+	// NOT IN LIBANKI
+	/**
+	 * test_deckIntegration at scale, and again after notes change, so a check that splits the work
+	 * across threads or skips notes it has already scanned must still report the same files.
+	 */
+	@LargeTest
+	public void test_checkLarge() {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		new CollectionGenerator(5).notes(5000).media(200, true).populate(d);
+		File dir = new File(d.getMedia().getDir());
+		List<String> missing = new ArrayList<String>();
+		for (int i = 3; i < 200; i += 10) {
+			new File(dir, CollectionGenerator.media(i)).delete();
+			missing.add(CollectionGenerator.media(i));
+		}
+		List<String> unused = new ArrayList<String>();
+		try {
+			for (int i = 0; i < 30; i++) {
+				BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(new File(dir, "unused" + i + ".jpg")));
+				bos.write(("unused " + i).getBytes());
+				bos.close();
+				unused.add("unused" + i + ".jpg");
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		assertCheck(d, missing, unused);
+		// the same again with nothing changed
+		assertCheck(d, missing, unused);
+		// a note starts referring to a file that isn't there
+		long nid = d.getDb().queryLongScalar("SELECT id FROM notes WHERE sfld = 'word 1'");
+		Note f = d.getNote(nid);
+		f.setitem("Back", "[sound:late.mp3]");
+		f.flush();
+		missing.add("late.mp3");
+		assertCheck(d, missing, unused);
+		// and all notes stop referring to a file that is there
+		List<Long> nids = d.getDb().queryColumn(Long.class, "SELECT id FROM notes", 0);
+		assertTrue(d.findReplace(nids, "<img src='" + CollectionGenerator.media(5) + "'>", "") > 0);
+		unused.add(CollectionGenerator.media(5));
+		assertCheck(d, missing, unused);
+	}
+
+	private static void assertCheck(Collection d, List<String> missing, List<String> unused) {
+		List<List<String>> ret = d.getMedia().check();
+		assertEquals(sorted(missing), sorted(ret.get(0)));
+		assertEquals(sorted(unused), sorted(ret.get(1)));
+	}
+
+	private static List<String> sorted(List<String> names) {
+		List<String> copy = new ArrayList<String>(names);
+		Collections.sort(copy);
+		return copy;
+	}
+
 	@MediumTest
 	public void test_changes() {
 		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
@@ -183,5 +351,38 @@ public class MediaTestCase extends InstrumentationTestCase {
 		assertTrue(d.getMedia().getMediaDb().queryColumn(String.class, "select fname from log where type = 0", 0).size() == 1);
 		assertTrue(d.getMedia().removed().size() == 1);
 	}
+
+	// NOT IN LIBANKI
+	@LargeTest
+	public void test_changesLarge() throws IOException, InterruptedException {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		File dir = new File(d.getMedia().getDir());
+		int files = 500;
+		for (int i = 0; i < files; i++) {
+			BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(new File(dir, "f" + i + ".jpg")));
+			bos.write(("file " + i).getBytes());
+			bos.close();
+		}
+		// the folder mtime only has one second granularity
+		Thread.sleep(1000);
+		d.getMedia().findChanges();
+		assertTrue(d.getMedia().getMediaDb().queryColumn(String.class, "select fname from log where type = 0", 0).size() == files);
+		assertTrue(d.getMedia().removed().isEmpty());
+		// a second scan with nothing changed logs nothing new
+		d.getMedia().findChanges();
+		assertTrue(d.getMedia().getMediaDb().queryColumn(String.class, "select fname from log where type = 0", 0).size() == files);
+		assertTrue(d.getMedia().removed().isEmpty());
+		// remove every tenth file and add one
+		Thread.sleep(1000);
+		for (int i = 0; i < files; i += 10) {
+			new File(dir, "f" + i + ".jpg").delete();
+		}
+		BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(new File(dir, "new.jpg")));
+		bos.write("new".getBytes());
+		bos.close();
+		d.getMedia().findChanges();
+		assertTrue(d.getMedia().getMediaDb().queryColumn(String.class, "select fname from log where type = 0", 0).size() == files - files / 10 + 1);
+		assertTrue(d.getMedia().removed().size() == files / 10);
+		assertTrue(d.getMedia().getMediaDb().queryColumn(String.class, "select fname from log where type = 0 and fname = 'new.jpg'", 0).size() == 1);
+	}
 }
-		
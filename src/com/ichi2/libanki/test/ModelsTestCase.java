@@ -17,6 +17,7 @@ package com.ichi2.libanki.test;
 
 import android.test.InstrumentationTestCase;
 import android.test.MoreAsserts;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import com.ichi2.libanki.Card;
@@ -25,12 +26,18 @@ import com.ichi2.libanki.Models;
 import com.ichi2.libanki.Note;
 import com.ichi2.libanki.Utils;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 
 public class ModelsTestCase extends InstrumentationTestCase {
 	public ModelsTestCase(String name) {
@@ -117,6 +124,67 @@ public class ModelsTestCase extends InstrumentationTestCase {
 		}
 	}
 	
+	// NOT IN LIBANKI
+	/**
+	 * Random sequences of the field operations of test_fields over many notes, checked after every
+	 * step against the expected field order.
+	 */
+	@LargeTest
+	public void test_fieldsRandomized() throws JSONException {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		Models mm = d.getModels();
+		JSONObject m = mm.current();
+		// fields are known by a number that stays the same through renames and moves
+		List<Integer> order = new ArrayList<Integer>(Arrays.asList(new Integer[]{0, 1}));
+		int nextField = 2;
+		int notes = 500;
+		Map<Long, Integer> index = new HashMap<Long, Integer>();
+		for (int i = 0; i < notes; i++) {
+			Note f = d.newNote();
+			f.setitem("Front", fieldValue(i, 0));
+			f.setitem("Back", fieldValue(i, 1));
+			d.addNote(f);
+			index.put(f.getId(), i);
+		}
+		Random rnd = new Random(24);
+		for (int step = 0; step < 40; step++) {
+			JSONArray flds = m.getJSONArray("flds");
+			int op = rnd.nextInt(4);
+			if (op == 0 && order.size() < 6 || order.size() < 3) {
+				JSONObject f = mm.newField(m.toString());
+				f.put("name", "f" + nextField);
+				mm.addField(m, f);
+				order.add(nextField++);
+			} else if (op == 1) {
+				int pos = rnd.nextInt(order.size());
+				mm.remField(m, flds.getJSONObject(pos));
+				order.remove(pos);
+			} else if (op == 2) {
+				int from = rnd.nextInt(order.size());
+				int to = rnd.nextInt(order.size());
+				mm.moveField(m, flds.getJSONObject(from), to);
+				order.add(to, order.remove(from));
+			} else {
+				int pos = rnd.nextInt(order.size());
+				mm.renameField(m, flds.getJSONObject(pos), "r" + step);
+			}
+			for (long nid : mm.nids(m)) {
+				int i = index.get(nid);
+				String[] expected = new String[order.size()];
+				for (int k = 0; k < expected.length; k++) {
+					// fields added later start out empty
+					expected[k] = order.get(k) < 2 ? fieldValue(i, order.get(k)) : "";
+				}
+				Note f = d.getNote(nid);
+				assertTrue("step " + step, Arrays.equals(expected, f.getFields()));
+			}
+		}
+	}
+
+	private static String fieldValue(int note, int field) {
+		return "n" + note + "f" + field;
+	}
+
 	@MediumTest
 	public void test_templates() {
 		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
@@ -315,6 +383,106 @@ public class ModelsTestCase extends InstrumentationTestCase {
 		
 	}
 	
+	// NOT IN LIBANKI
+	/** test_modelChange over many notes, converting two halves of them with different maps. */
+	@LargeTest
+	public void test_modelChangeLarge() throws JSONException {
+		Collection deck = Shared.getEmptyDeck(getInstrumentation().getContext());
+		Models mm = deck.getModels();
+		JSONObject basic = mm.current();
+		JSONObject t = mm.newTemplate("Reverse");
+		t.put("qfmt", "{{Back}}");
+		t.put("afmt", "{{Front}}");
+		mm.addTemplate(basic, t);
+		mm.save(basic);
+		JSONObject target = mm.copy(basic);
+		JSONObject extra = mm.newField(target.toString());
+		extra.put("name", "Extra");
+		mm.addField(target, extra);
+		int notes = 1000;
+		for (int i = 0; i < notes; i++) {
+			Note f = deck.newNote();
+			f.setitem("Front", fieldValue(i, 0));
+			f.setitem("Back", fieldValue(i, 1));
+			deck.addNote(f);
+		}
+		// give the cards some history, which has to survive the conversion
+		deck.getDb().execute("UPDATE cards SET type = 2, queue = 2, ivl = id % 100 + 1, due = id % 50, reps = 3");
+		List<Long> nids = mm.nids(basic);
+		assertTrue(nids.size() == notes);
+		Map<Long, Integer> index = new HashMap<Long, Integer>();
+		for (long nid : nids) {
+			Note f = deck.getNote(nid);
+			index.put(nid, Integer.parseInt(f.getitem("Front").substring(1, f.getitem("Front").indexOf('f'))));
+		}
+		Map<Long, String> before = cardState(deck);
+		// front stays, back moves to the new field; the first half swaps its cards, the second
+		// half keeps its first card and drops the second
+		Map<Integer, Integer> fieldMap = new HashMap<Integer, Integer>();
+		fieldMap.put(0, 0);
+		fieldMap.put(1, 2);
+		Map<Integer, Integer> swap = new HashMap<Integer, Integer>();
+		swap.put(0, 1);
+		swap.put(1, 0);
+		Map<Integer, Integer> drop = new HashMap<Integer, Integer>();
+		drop.put(0, 0);
+		drop.put(1, null);
+		long[] first = new long[notes / 2];
+		long[] second = new long[notes - notes / 2];
+		for (int i = 0; i < notes; i++) {
+			if (i < first.length) {
+				first[i] = nids.get(i);
+			} else {
+				second[i - first.length] = nids.get(i);
+			}
+		}
+		Map<Long, Integer> ords = cardOrds(deck);
+		mm.change(basic, first, target, fieldMap, swap);
+		mm.change(basic, second, target, fieldMap, drop);
+		assertTrue(mm.useCount(basic) == 0);
+		assertTrue(mm.useCount(target) == notes);
+		Map<Long, String> after = cardState(deck);
+		Map<Long, Integer> newOrds = cardOrds(deck);
+		Set<Long> firstHalf = new HashSet<Long>();
+		for (long nid : first) {
+			firstHalf.add(nid);
+		}
+		for (long nid : nids) {
+			int i = index.get(nid);
+			Note f = deck.getNote(nid);
+			assertTrue(Arrays.equals(f.getFields(), new String[]{fieldValue(i, 0), "", fieldValue(i, 1)}));
+			List<Long> cids = deck.getDb().queryColumn(Long.class, "SELECT id FROM cards WHERE nid = " + nid, 0);
+			assertTrue(cids.size() == (firstHalf.contains(nid) ? 2 : 1));
+			for (long cid : cids) {
+				// the same card, with the same history, under its mapped template
+				assertEquals(before.get(cid), after.get(cid));
+				int ord = ords.get(cid);
+				assertTrue(newOrds.get(cid) == (firstHalf.contains(nid) ? 1 - ord : ord));
+			}
+		}
+		assertTrue(deck.cardCount() == notes + notes / 2);
+	}
+
+	/** Everything but the template of each card, keyed by card id. */
+	private static Map<Long, String> cardState(Collection deck) {
+		Map<Long, String> state = new HashMap<Long, String>();
+		for (long cid : deck.getDb().queryColumn(Long.class, "SELECT id FROM cards", 0)) {
+			state.put(cid, deck.getDb().queryColumn(String.class, "SELECT nid || ',' || did || ',' || type || ',' || " +
+					"queue || ',' || due || ',' || ivl || ',' || reps FROM cards WHERE id = " + cid, 0).get(0));
+		}
+		return state;
+	}
+
+	private static Map<Long, Integer> cardOrds(Collection deck) {
+		Map<Long, Integer> ords = new HashMap<Long, Integer>();
+		List<Long> cids = deck.getDb().queryColumn(Long.class, "SELECT id FROM cards ORDER BY id", 0);
+		List<Long> values = deck.getDb().queryColumn(Long.class, "SELECT ord FROM cards ORDER BY id", 0);
+		for (int i = 0; i < cids.size(); i++) {
+			ords.put(cids.get(i), values.get(i).intValue());
+		}
+		return ords;
+	}
+
 	@MediumTest
 	public void test_availOrds() {
 		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
@@ -15,9 +15,11 @@
  ****************************************************************************************/
 package com.ichi2.libanki.test;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.TreeSet;
 import java.util.regex.Pattern;
 
@@ -1294,6 +1296,101 @@ public class SchedTestCase extends InstrumentationTestCase {
 		d.getSched().deckDueTree(Sched.DECK_INFORMATION_SIMPLE_COUNTS);
 	}
 	
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_deckDueRandomized() throws JSONException {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		// keep the daily limits out of the way, so each count is just the matching cards of its deck
+		d.getDecks().confForDid(1).getJSONObject("new").put("perDay", 9999);
+		d.getDecks().confForDid(1).getJSONObject("rev").put("perDay", 9999);
+		String[] names = new String[]{"Default", "Default::a", "Default::a::b", "x", "x::y"};
+		Random rnd = new Random(42);
+		long dyn = 0;
+		for (int step = 0; step < 150; step++) {
+			List<Long> cids = d.getDb().queryColumn(Long.class, "SELECT id FROM cards ORDER BY id", 0);
+			long cid = cids.isEmpty() ? 0 : cids.get(rnd.nextInt(cids.size()));
+			int op = cids.size() < 10 ? 0 : rnd.nextInt(10);
+			switch (op) {
+				case 0:
+					// add a note to a random deck
+					Note f = d.newNote();
+					f.setitem("Front", "card " + step);
+					f.model().put("did", d.getDecks().id(names[rnd.nextInt(names.length)]));
+					d.addNote(f);
+					break;
+				case 1:
+					// turn a card into a review due today or earlier
+					d.getDb().execute("UPDATE cards SET type = 2, queue = 2, ivl = 5, factor = 2500, due = ? WHERE id = ? AND odid = 0",
+							new Object[]{d.getSched().getToday() - rnd.nextInt(3), cid});
+					break;
+				case 2:
+					// answer whatever comes up: again and good leave new cards in learning and
+					// send reviews to relearning, easy graduates them
+					d.getDecks().select(1);
+					d.reset();
+					Card c = d.getSched().getCard();
+					if (c != null && c.getODid() == 0) {
+						d.getSched().answerCard(c, 1 + rnd.nextInt(3));
+					}
+					break;
+				case 3:
+					d.getSched().suspendCards(new long[]{cid});
+					break;
+				case 4:
+					d.getSched().unsuspendCards(new long[]{cid});
+					break;
+				case 5:
+					if (dyn == 0) {
+						dyn = d.getDecks().newDyn("Cram");
+						d.getSched().rebuildDyn(dyn);
+					} else {
+						d.getSched().emptyDyn(dyn);
+						d.getDecks().rem(dyn);
+						dyn = 0;
+					}
+					break;
+				case 6:
+					d.remCards(new long[]{cid});
+					break;
+				case 7:
+					// rename a deck back and forth
+					String from = rnd.nextBoolean() ? "x::y" : "x::z";
+					String to = from.equals("x::y") ? "x::z" : "x::y";
+					if (d.getDecks().allNames().contains(from) && !d.getDecks().allNames().contains(to)) {
+						d.getDecks().rename(d.getDecks().get(d.getDecks().id(from)), to);
+					}
+					break;
+				case 8:
+					// a day passes
+					d.getDb().execute("UPDATE cards SET due = due - 1 WHERE queue IN (2, 3)");
+					break;
+				case 9:
+					// remove a leaf deck with its cards, it gets created again by later notes
+					if (dyn == 0 && rnd.nextInt(3) == 0) {
+						d.getDecks().rem(d.getDecks().id("Default::a::b"), true);
+					}
+					break;
+			}
+			d.getDecks().select(1);
+			d.reset();
+			long today = d.getSched().getToday();
+			// learning cards count once per step left today if due before the collapse cutoff
+			long cutoff = Utils.intNow() + d.getConf().getInt("collapseTime");
+			for (Object[] row : d.getSched().deckDueList(Sched.DECK_INFORMATION_SIMPLE_COUNTS)) {
+				long did = (Long) row[1];
+				// [deckname, did, new, lrn, rev]
+				String msg = "step " + step + " op " + op + " deck " + row[0];
+				assertEquals(msg, d.getDb().queryScalar("SELECT count() FROM cards WHERE did = " + did +
+						" AND queue = 0"), ((Integer) row[2]).intValue());
+				assertEquals(msg, d.getDb().queryScalar("SELECT sum(left / 1000) FROM cards WHERE did = " + did +
+						" AND queue = 1 AND due < " + cutoff) + d.getDb().queryScalar("SELECT count() FROM cards " +
+						"WHERE did = " + did + " AND queue = 3 AND due <= " + today), ((Integer) row[3]).intValue());
+				assertEquals(msg, d.getDb().queryScalar("SELECT count() FROM cards WHERE did = " + did +
+						" AND queue = 2 AND due <= " + today), ((Integer) row[4]).intValue());
+			}
+		}
+	}
+
 	@MediumTest
 	public void test_deckTree() {
 		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
@@ -1459,6 +1556,79 @@ public class SchedTestCase extends InstrumentationTestCase {
 		d.getSched().answerCard(c, 1);
 	}
 
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_queuesWithoutReset() {
+		// answering a card has to leave the queues as a full rebuild would: at every step, the card
+		// taken from the queues kept since the last answer must be the one a rebuild gives right after
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		long child = d.getDecks().id("Default::child");
+		for (int i = 0; i < 20; i++) {
+			Note f = d.newNote();
+			f.setitem("Front", Integer.toString(i));
+			try {
+				f.model().put("did", i % 3 == 0 ? child : 1);
+			} catch (JSONException e) {
+				throw new RuntimeException(e);
+			}
+			d.addNote(f);
+		}
+		d.reset();
+		int seen = 0;
+		for (int i = 0; i < 200; i++) {
+			Card c = d.getSched().getCard();
+			d.reset();
+			Card rebuilt = d.getSched().getCard();
+			if (c == null) {
+				assertNull(rebuilt);
+				break;
+			}
+			assertNotNull("step " + i, rebuilt);
+			assertEquals("step " + i, c.getId(), rebuilt.getId());
+			seen++;
+			// graduate every other new card at once, send the rest through learning
+			d.getSched().answerCard(rebuilt, rebuilt.getQueue() == 0 && seen % 2 == 0 ? 3 : 2);
+		}
+		assertTrue(seen >= 20);
+	}
+
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_replay() throws IOException {
+		Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
+		for (int i = 0; i < 10; i++) {
+			Note f = d.newNote();
+			f.setitem("Front", Integer.toString(i));
+			d.addNote(f);
+		}
+		Collection d2 = Shared.copyCollection(d);
+		// study the first collection, keeping a log of what was answered how
+		List<long[]> log = new ArrayList<long[]>();
+		Random rnd = new Random(7);
+		d.reset();
+		for (int i = 0; i < 40; i++) {
+			Card c = d.getSched().getCard();
+			if (c == null) {
+				break;
+			}
+			// only again and good, so no interval gets fuzzed
+			int ease = 1 + rnd.nextInt(2);
+			d.getSched().answerCard(c, ease);
+			log.add(new long[]{c.getId(), ease});
+		}
+		assertTrue(log.size() > 10);
+		// replaying the log on the copy must produce the same cards and revlog, apart from the
+		// wall-clock parts: when it was answered, how long it took, and the due times of cards in
+		// learning, which are in seconds
+		Shared.replayAnswers(d2, log);
+		assertTrue(Arrays.equals(Shared.tableDigest(d, "cards", "mod", "due"),
+				Shared.tableDigest(d2, "cards", "mod", "due")));
+		String dues = "SELECT id || ':' || due FROM cards WHERE queue != 1 ORDER BY id";
+		assertEquals(d.getDb().queryColumn(String.class, dues, 0), d2.getDb().queryColumn(String.class, dues, 0));
+		assertTrue(Arrays.equals(Shared.tableDigest(d, "revlog", "id", "time"),
+				Shared.tableDigest(d2, "revlog", "id", "time")));
+	}
+
     @MediumTest
     public void test_failmult() throws JSONException {
         Collection d = Shared.getEmptyDeck(getInstrumentation().getContext());
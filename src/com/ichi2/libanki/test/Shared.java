@@ -17,15 +17,20 @@ package com.ichi2.libanki.test;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
 
+import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
 import com.ichi2.libanki.Storage;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.util.Log;
 
 public class Shared {
@@ -82,6 +87,83 @@ public class Shared {
 		return Storage.Collection(dst.getAbsolutePath(), server);
 	}
 
+    /**
+     * Copies the collection file next to the original and opens the copy, which shares all ids with
+     * the original. The original is saved, and closed and reopened around the copy.
+     */
+    public static Collection copyCollection(Collection col) throws IOException {
+        return copyCollection(col, false);
+    }
+
+    /** As {@link #copyCollection(Collection)}, opening the copy as a sync server if server is set. */
+    public static Collection copyCollection(Collection col, boolean server) throws IOException {
+        col.save();
+        col.close(false);
+        File dst = File.createTempFile("copy", ".anki2", new File(col.getPath()).getParentFile());
+        InputStream is = new FileInputStream(col.getPath());
+        byte[] buf = new byte[32768];
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(dst));
+        int len;
+        while ((len = is.read(buf)) > 0) {
+            output.write(buf, 0, len);
+        }
+        output.close();
+        is.close();
+        col.reopen();
+        return Storage.Collection(dst.getAbsolutePath(), server);
+    }
+
+    /**
+     * Answers the given cards one after the other with plain answerCard calls, the way the
+     * reviewer would. Each entry is {cardId, ease}. This is the reference any bulk way of
+     * ingesting reviews has to reproduce.
+     */
+    public static void replayAnswers(Collection col, List<long[]> answers) {
+        col.reset();
+        for (long[] answer : answers) {
+            Card c = col.getCard(answer[0]);
+            c.startTimer();
+            col.getSched().answerCard(c, (int) answer[1]);
+        }
+    }
+
+    /**
+     * Order-independent digest of a table: the number of rows and the XOR of a 64-bit hash of each
+     * row, leaving out the given columns. Two tables holding the same rows give the same digest no
+     * matter in which order or by which code path the rows were written.
+     */
+    public static long[] tableDigest(Collection col, String table, String... skip) {
+        List<String> skipped = Arrays.asList(skip);
+        long count = 0;
+        long xor = 0;
+        Cursor cur = null;
+        try {
+            cur = col.getDb().getDatabase().rawQuery("SELECT * FROM " + table, null);
+            String[] names = cur.getColumnNames();
+            while (cur.moveToNext()) {
+                // FNV-1a over "name=value" pairs
+                long h = 0xcbf29ce484222325L;
+                for (int i = 0; i < names.length; i++) {
+                    if (skipped.contains(names[i])) {
+                        continue;
+                    }
+                    String v = names[i] + "=" + cur.getString(i) + "\u0001";
+                    for (int j = 0; j < v.length(); j++) {
+                        h ^= v.charAt(j);
+                        h *= 0x100000001b3L;
+                    }
+                }
+                xor ^= h;
+                count++;
+            }
+        } finally {
+            if (cur != null) {
+                cur.close();
+            }
+        }
+        return new long[]{count, xor};
+    }
+
     public static int[] toPrimitiveInt(Integer[] array) {
         int[] results = new int[array.length];
         if (array != null) {
@@ -1,6 +1,8 @@
 package com.ichi2.libanki.test;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -11,11 +13,14 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
 import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
 
 import com.ichi2.libanki.Card;
 import com.ichi2.libanki.Collection;
@@ -23,6 +28,7 @@ import com.ichi2.libanki.Note;
 import com.ichi2.libanki.Storage;
 import com.ichi2.libanki.Utils;
 import com.ichi2.libanki.sync.LocalServer;
+import com.ichi2.libanki.sync.SyncCodec;
 import com.ichi2.libanki.sync.Syncer;
 
 public class SyncTestCase extends InstrumentationTestCase {
@@ -34,6 +40,7 @@ public class SyncTestCase extends InstrumentationTestCase {
 	Collection deck2;
 	LocalServer server;
 	Syncer client;
+	int transport = LocalServer.TRANSPORT_COPY;
 
 	@MediumTest
 	public void setup_basic() {
@@ -63,7 +70,7 @@ public class SyncTestCase extends InstrumentationTestCase {
 		long t = Utils.intNow(1000);
 		deck1.save(t);
 		deck2.save(t);
-		server = new LocalServer(deck2);
+		server = new LocalServer(deck2, transport);
 		client = new Syncer(deck1, server);
 	}
 
@@ -130,6 +137,35 @@ public class SyncTestCase extends InstrumentationTestCase {
 		}
 	}
 
+	// NOT IN LIBANKI
+	/** Beyond the counts compared by sanityCheck, the rows themselves must agree after a sync. */
+	private void checkContent() {
+		for (String t : new String[]{"revlog", "notes", "cards", "graves"}) {
+			assertTrue(Arrays.equals(Shared.tableDigest(deck1, t, "usn"), Shared.tableDigest(deck2, t, "usn")));
+		}
+	}
+
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_contentDivergence() {
+		test_sync();
+		checkContent();
+		// a change written without marking the row for sync, as a bulk update that forgets the usn
+		// would do: the sync goes through, as sanityCheck only compares counts, but the card differs
+		long cid = deck1.getDb().queryLongScalar("SELECT id FROM cards LIMIT 1");
+		deck1.getDb().execute("UPDATE cards SET reps = reps + 1 WHERE id = " + cid);
+		deck1.setMod();
+		deck1.save();
+		assertTrue(((String)client.sync()[0]).compareTo("success") == 0);
+		assertFalse(Arrays.equals(Shared.tableDigest(deck1, "cards", "usn"), Shared.tableDigest(deck2, "cards", "usn")));
+		// once the row is marked, and newer than the server's, the next sync brings both sides together again
+		deck1.getDb().execute("UPDATE cards SET usn = -1, mod = mod + 1 WHERE id = " + cid);
+		deck1.setMod();
+		deck1.save();
+		assertTrue(((String)client.sync()[0]).compareTo("success") == 0);
+		checkContent();
+	}
+
 	public void test_models() {
 		test_sync();
 		// update model one
@@ -347,6 +383,163 @@ public class SyncTestCase extends InstrumentationTestCase {
         d3file.delete();
 	}
 
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_sharedTransport() {
+		transport = LocalServer.TRANSPORT_SHARED;
+		// covers notes, cards, revlog, graves and conflict resolution in both directions
+		test_cards();
+		// models handed over during the sync must not end up as the same objects on both sides
+		try {
+			JSONObject cm = deck2.getModels().current();
+			cm.put("name", "server only");
+			assertTrue(deck1.getModels().get(cm.getLong("id")).getString("name").compareTo("server only") != 0);
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_compressedTransport() {
+		transport = LocalServer.TRANSPORT_COMPRESSED;
+		test_cards();
+		assertTrue(server.getWireBytes() > 0);
+	}
+
+	// NOT IN LIBANKI
+	@MediumTest
+	public void test_wireCodec() {
+		try {
+			// a chunk shaped like the ones Syncer sends: rows of cards plus a few scalars
+			JSONObject chunk = new JSONObject();
+			JSONArray cards = new JSONArray();
+			long id = Utils.intNow(1000);
+			for (int i = 0; i < 1000; i++) {
+				JSONArray row = new JSONArray();
+				for (Object v : new Object[]{id + i, id + i / 2, 1, i % 2, Utils.intNow(), -1, 2, 2,
+						i * 3, 10, 2500, 5, 0, 0, 0, 0, 0, ""}) {
+					row.put(v);
+				}
+				cards.put(row);
+			}
+			chunk.put("cards", cards);
+			chunk.put("revlog", new JSONArray());
+			chunk.put("done", true);
+			chunk.put("note", "ünïcödé [sound:a.mp3]");
+			chunk.put("ease", 2.5);
+			chunk.put("nothing", JSONObject.NULL);
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			SyncCodec.encode(chunk, bos);
+			JSONObject decoded = (JSONObject) SyncCodec.decode(new ByteArrayInputStream(bos.toByteArray()));
+			assertEquals(chunk.toString(), decoded.toString());
+			// column and delta encoding should beat plain json by a wide margin
+			assertTrue(bos.size() * 5 < chunk.toString().getBytes().length);
+		} catch (JSONException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// NOT IN LIBANKI
+	@LargeTest
+	public void test_chunkMemory() {
+		int[] small = syncedChunks(250);
+		int[] large = syncedChunks(2500);
+		// ten times the notes take more chunks, but no chunk holds more rows than before
+		assertTrue(large[0] > small[0]);
+		assertTrue(large[1] == small[1]);
+	}
+
+	/**
+	 * Syncs a client holding num fresh notes into an empty server and returns the number of chunks
+	 * that went through the server and the most rows any of them held.
+	 */
+	private int[] syncedChunks(int num) {
+		setup_sized(num, 0);
+		assertTrue(((String)client.sync()[0]).compareTo("success") == 0);
+		assertTrue(deck2.noteCount() == num);
+		return new int[]{server.getChunks(), server.getMaxChunkRows()};
+	}
+
+	// NOT IN LIBANKI
+	@LargeTest
+	public void test_prefetchedChunks() {
+		int num = 5000;
+		setup_sized(0, num);
+		long t = System.currentTimeMillis();
+		assertTrue(((String)client.sync()[0]).compareTo("success") == 0);
+		long sequential = System.currentTimeMillis() - t;
+		assertTrue(deck1.noteCount() == num);
+		// same again, with the server building chunks ahead while the client applies them
+		setup_sized(0, num);
+		server.setPrefetch(2);
+		t = System.currentTimeMillis();
+		assertTrue(((String)client.sync()[0]).compareTo("success") == 0);
+		long prefetched = System.currentTimeMillis() - t;
+		assertTrue(deck1.noteCount() == num);
+		assertTrue(deck1.cardCount() == deck2.cardCount());
+		assertTrue(deck1.getMod() == deck2.getMod());
+		Log.i(Shared.TAG, "test_prefetchedChunks: " + num + " notes, sequential " + sequential +
+				"ms, prefetched " + prefetched + "ms");
+		// the prefetching thread stops by itself once the last chunk was taken, so aborting is a no-op
+		server.abort();
+		assertFalse(prefetchRunning());
+		// and the server keeps working for the next sync; as in setup_modified, wait a little so the
+		// new mod time differs from the one of the last sync
+		try {
+			Thread.sleep(100);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+		deck1.setMod();
+		deck1.save();
+		assertTrue(((String)client.sync()[0]).compareTo("success") == 0);
+		assertTrue(deck1.noteCount() == deck2.noteCount());
+	}
+
+	/** Whether a chunk prefetching thread of any LocalServer is still alive, waiting up to a second for it to end. */
+	private static boolean prefetchRunning() {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().equals(LocalServer.PREFETCH_THREAD)) {
+				try {
+					t.join(1000);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+				if (t.isAlive()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Creates deck1 and deck2 with the given numbers of fresh notes, the same schema and deck2
+	 * older, so that the next sync is a normal one that merges both sides.
+	 */
+	private void setup_sized(int clientNotes, int serverNotes) {
+		deck1 = Shared.getEmptyDeck(getInstrumentation().getContext());
+		deck2 = Shared.getEmptyDeck(getInstrumentation().getContext(), true);
+		for (Collection d : new Collection[]{deck1, deck2}) {
+			int num = d == deck1 ? clientNotes : serverNotes;
+			for (int i = 0; i < num; i++) {
+				Note f = d.newNote();
+				f.setitem("Front", "front " + i);
+				f.setitem("Back", "back " + i);
+				d.addNote(f);
+			}
+			d.setScm(0);
+		}
+		long t = Utils.intNow(1000);
+		deck2.save(t - 1000);
+		deck1.save(t);
+		server = new LocalServer(deck2, transport);
+		client = new Syncer(deck1, server);
+	}
+
 	// test_speed
 	
 }